@@ -0,0 +1,305 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The convolution engine shared by the image processors.
+ * It applies a {@link Kernel} of any odd size to any region of an image, reading the image in place.
+ * A filter whose weights are the outer product of two vectors is separable, and can be applied as
+ * a horizontal pass followed by a vertical pass. For an NxN filter that is 2N multiply-adds
+ * per channel and pixel instead of N*N.
+ * When the SIMD backend in the vector source root was compiled in and the JVM is started with
+ * --add-modules jdk.incubator.vector, the pixels whose kernel window lies inside the image are handed to it;
+ * otherwise everything runs on the scalar path.
+ */
+public class Convolution {
+    /**
+     * How far a weight may be from the product of the two vectors for a filter to still count as separable.
+     */
+    private static final double SEPARABLE_TOLERANCE = 1e-6;
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private static final ConvolutionBackend VECTOR_BACKEND = loadVectorBackend();
+
+    private static volatile boolean vectorEnabled = VECTOR_BACKEND != null;
+
+    /**
+     * The largest plane, in values, kept for reuse by a thread. Tiles are far smaller;
+     * filtering a whole image in one region gets planes that are dropped afterwards.
+     */
+    private static final int MAX_REUSED_PLANE = 1 << 20;
+
+    /**
+     * The channel planes of the horizontal pass, kept by each worker so tiles do not allocate them.
+     */
+    private static final ThreadLocal<float[][]> PLANES = ThreadLocal.withInitial(() -> new float[3][0]);
+
+    private Convolution() {
+    }
+
+    /**
+     * This method checks whether a filter is separable and, if it is, splits it into its two vectors.
+     * The filter is indexed as filter[x][y], so filter[x][y] == alongX[x] * alongY[y].
+     * @param filter the filter to split
+     * @return {alongX, alongY}, or null if the filter is not separable
+     */
+    public static float[][] separate(float[][] filter) {
+        int pivotX = 0;
+        int pivotY = 0;
+        float largest = 0;
+        for (int x = 0; x < filter.length; x++) {
+            for (int y = 0; y < filter[x].length; y++) {
+                if (Math.abs(filter[x][y]) > largest) {
+                    largest = Math.abs(filter[x][y]);
+                    pivotX = x;
+                    pivotY = y;
+                }
+            }
+        }
+        if (largest == 0) {
+            return null;
+        }
+
+        // A rank one matrix is fully described by one of its columns and one of its rows.
+        float[] alongX = new float[filter.length];
+        float[] alongY = new float[filter[0].length];
+        for (int x = 0; x < alongX.length; x++) {
+            alongX[x] = filter[x][pivotY];
+        }
+        for (int y = 0; y < alongY.length; y++) {
+            alongY[y] = filter[pivotX][y] / filter[pivotX][pivotY];
+        }
+
+        for (int x = 0; x < alongX.length; x++) {
+            for (int y = 0; y < alongY.length; y++) {
+                if (Math.abs(filter[x][y] - alongX[x] * alongY[y]) > SEPARABLE_TOLERANCE * largest) {
+                    return null;
+                }
+            }
+        }
+        return new float[][] {alongX, alongY};
+    }
+
+    /**
+     * @return whether the SIMD backend could be loaded, which needs it to be compiled in and the jdk.incubator.vector module.
+     */
+    public static boolean isVectorAvailable() {
+        return VECTOR_BACKEND != null;
+    }
+
+    /**
+     * This method turns the SIMD backend on or off. It is on by default when it is available,
+     * and turning it on has no effect when it is not.
+     * @param enabled whether the SIMD backend should be used
+     */
+    public static void setVectorEnabled(boolean enabled) {
+        vectorEnabled = enabled && VECTOR_BACKEND != null;
+    }
+
+    public static boolean isVectorEnabled() {
+        return vectorEnabled;
+    }
+
+    /**
+     * Applies a kernel to a region of an image, taking the two-pass path when the kernel is separable.
+     * The kernel reads the source directly. Where it reaches past the edge of the image the
+     * edge policy decides which pixel is used, so no bordered copy of the image is needed.
+     * The filtered region is written to the destination.
+     * When the SIMD backend is enabled it filters the part of the region whose kernel window
+     * lies inside the image, and the scalar path filters the strips around it.
+     * @param source The whole input image. It is only read.
+     * @param kernel The kernel.
+     * @param edge How pixels outside of the image are read.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the filtered region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void apply(Raster source, Kernel kernel, EdgePolicy edge, int x, int y, int width, int height,
+                             Raster dest, int destX, int destY) {
+        if (vectorEnabled) {
+            int radius = kernel.getRadius();
+            int left = Math.max(x, radius);
+            int top = Math.max(y, radius);
+            int right = Math.min(x + width, source.getWidth() - radius);
+            int bottom = Math.min(y + height, source.getHeight() - radius);
+            if (left < right && top < bottom) {
+                VECTOR_BACKEND.applyInterior(source, kernel, left, top, right - left, bottom - top,
+                        dest, destX + left - x, destY + top - y);
+                applyScalar(source, kernel, edge, x, y, width, top - y, dest, destX, destY);
+                applyScalar(source, kernel, edge, x, bottom, width, y + height - bottom, dest, destX, destY + bottom - y);
+                applyScalar(source, kernel, edge, x, top, left - x, bottom - top, dest, destX, destY + top - y);
+                applyScalar(source, kernel, edge, right, top, x + width - right, bottom - top,
+                        dest, destX + right - x, destY + top - y);
+                return;
+            }
+        }
+        applyScalar(source, kernel, edge, x, y, width, height, dest, destX, destY);
+    }
+
+    /**
+     * Applies a kernel to a region of an image on the scalar path, one pixel and channel at a time.
+     */
+    private static void applyScalar(Raster source, Kernel kernel, EdgePolicy edge, int x, int y, int width, int height,
+                                    Raster dest, int destX, int destY) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (kernel.isSeparable()) {
+            applySeparable(source, kernel.getAlongX(), kernel.getAlongY(), edge, x, y, width, height, dest, destX, destY);
+            return;
+        }
+
+        int size = kernel.getSize();
+        int radius = kernel.getRadius();
+        float[] weights = kernel.getWeights();
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] input = source.getPixels();
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+
+        for (int j = 0; j < height; j++) {
+            int top = y + j - radius;
+            boolean rowsInside = top >= 0 && top + size <= sourceHeight;
+            for (int i = 0; i < width; i++) {
+                int left = x + i - radius;
+                boolean inside = rowsInside && left >= 0 && left + size <= sourceWidth;
+
+                double red = 0.0;
+                double green = 0.0;
+                double blue = 0.0;
+
+                for (int ky = 0; ky < size; ky++) {
+                    int rowStart = (top + ky) * sourceWidth + left;
+                    for (int kx = 0; kx < size; kx++) {
+                        int argb = inside ? input[rowStart + kx] : edge.argb(source, left + kx, top + ky);
+                        float weight = weights[ky * size + kx];
+                        red += Raster.red(argb) * weight;
+                        green += Raster.green(argb) * weight;
+                        blue += Raster.blue(argb) * weight;
+                    }
+                }
+
+                output[(destY + j) * outputWidth + destX + i] = Raster.pack(toChannel(red), toChannel(green), toChannel(blue));
+            }
+        }
+    }
+
+    /**
+     * Applies a separable filter to a region of an image as a horizontal pass followed by a vertical pass.
+     * The horizontal pass covers the rows above and below the region the vertical pass needs.
+     * @param source The whole input image. It is only read.
+     * @param alongX The weights of the horizontal pass.
+     * @param alongY The weights of the vertical pass.
+     * @param edge How pixels outside of the image are read.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the filtered region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void applySeparable(Raster source, float[] alongX, float[] alongY, EdgePolicy edge,
+                                      int x, int y, int width, int height, Raster dest, int destX, int destY) {
+        int radiusX = alongX.length / 2;
+        int radiusY = alongY.length / 2;
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] input = source.getPixels();
+        int rows = height + alongY.length - 1;
+
+        float[][] planes = planes(width * rows);
+        float[] red = planes[0];
+        float[] green = planes[1];
+        float[] blue = planes[2];
+        for (int row = 0; row < rows; row++) {
+            int sourceRow = y - radiusY + row;
+            boolean rowInside = sourceRow >= 0 && sourceRow < sourceHeight;
+            int rowStart = sourceRow * sourceWidth;
+            for (int i = 0; i < width; i++) {
+                int left = x + i - radiusX;
+                boolean inside = rowInside && left >= 0 && left + alongX.length <= sourceWidth;
+                double r = 0.0;
+                double g = 0.0;
+                double b = 0.0;
+                for (int k = 0; k < alongX.length; k++) {
+                    int argb = inside ? input[rowStart + left + k] : edge.argb(source, left + k, sourceRow);
+                    r += Raster.red(argb) * alongX[k];
+                    g += Raster.green(argb) * alongX[k];
+                    b += Raster.blue(argb) * alongX[k];
+                }
+                red[row * width + i] = (float) r;
+                green[row * width + i] = (float) g;
+                blue[row * width + i] = (float) b;
+            }
+        }
+
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                double r = 0.0;
+                double g = 0.0;
+                double b = 0.0;
+                for (int l = 0; l < alongY.length; l++) {
+                    int index = (j + l) * width + i;
+                    r += red[index] * alongY[l];
+                    g += green[index] * alongY[l];
+                    b += blue[index] * alongY[l];
+                }
+                output[(destY + j) * outputWidth + destX + i] = Raster.pack(toChannel(r), toChannel(g), toChannel(b));
+            }
+        }
+    }
+
+    /**
+     * This method gives three channel planes of at least the given length for the horizontal pass
+     * of a separable filter. Small planes belong to the calling thread and are reused by its next tile,
+     * so they must not be held on to after the pass.
+     * @param length the number of values each plane needs
+     * @return the red, green and blue planes
+     */
+    static float[][] planes(int length) {
+        if (length > MAX_REUSED_PLANE) {
+            return new float[3][length];
+        }
+        float[][] planes = PLANES.get();
+        if (planes[0].length < length) {
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = new float[length];
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * This method loads the SIMD backend if the jdk.incubator.vector module is in the boot layer.
+     * The backend is loaded by name, so this class still loads and runs when the module or the backend is missing.
+     * @return the backend, or null if it is not available
+     */
+    private static ConvolutionBackend loadVectorBackend() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return null;
+        }
+        try {
+            return (ConvolutionBackend) Class.forName(Convolution.class.getPackageName() + ".VectorConvolution")
+                    .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method turns a channel sum in the 0 to 255 range into a clamped 8-bit value.
+     * @param value the filtered channel value
+     * @return the 8-bit channel value
+     */
+    static int toChannel(double value) {
+        return Raster.toByte(Raster.clampRGB(value / 255.0));
+    }
+}
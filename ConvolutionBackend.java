@@ -0,0 +1,23 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * A convolution implementation {@link Convolution} can hand the inside of a region to.
+ * It is only given pixels whose whole kernel window lies inside the image,
+ * so it never has to apply an edge policy.
+ */
+interface ConvolutionBackend {
+
+    /**
+     * Applies a kernel to a region of an image.
+     * @param source The whole input image. It is only read.
+     * @param kernel The kernel.
+     * @param x The left edge of the region, at least the kernel radius from the left of the image.
+     * @param y The top edge of the region, at least the kernel radius from the top of the image.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the filtered region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    void applyInterior(Raster source, Kernel kernel, int x, int y, int width, int height, Raster dest, int destX, int destY);
+}
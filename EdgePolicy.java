@@ -0,0 +1,55 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * How a convolution treats the pixels its kernel reaches outside of the image.
+ */
+public enum EdgePolicy {
+    /** Pixels outside of the image are mid grey. */
+    CONSTANT,
+    /** Pixels outside of the image repeat the nearest edge pixel. */
+    REPLICATE,
+    /** The image is mirrored at its edges, including the edge pixel: -1 maps to 0, -2 to 1. */
+    REFLECT,
+    /** The image repeats, so the pixels past the right edge come from the left edge. */
+    WRAP;
+
+    /**
+     * This method maps a coordinate, which may be outside of the image, to one inside it.
+     * @param coordinate the column or row
+     * @param length the width or height of the image
+     * @return the coordinate to read, or -1 if the constant colour should be used
+     */
+    public int index(int coordinate, int length) {
+        if (coordinate >= 0 && coordinate < length) {
+            return coordinate;
+        }
+        switch (this) {
+            case REPLICATE:
+                return coordinate < 0 ? 0 : length - 1;
+            case REFLECT:
+                int period = 2 * length;
+                int mirrored = Math.floorMod(coordinate, period);
+                return mirrored < length ? mirrored : period - 1 - mirrored;
+            case WRAP:
+                return Math.floorMod(coordinate, length);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * This method reads a pixel of an image, applying this policy when it is outside of the image.
+     * @param source the image
+     * @param x the column, which may be outside of the image
+     * @param y the row, which may be outside of the image
+     * @return the packed ARGB value
+     */
+    public int argb(Raster source, int x, int y) {
+        int column = index(x, source.getWidth());
+        int row = index(y, source.getHeight());
+        if (column < 0 || row < 0) {
+            return Raster.BORDER_GREY;
+        }
+        return source.getPixels()[row * source.getWidth() + column];
+    }
+}
@@ -0,0 +1,304 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sequence of filters applied one after the other, such as GREY, then BLUR, then EDGE.
+ * The steps are either convolutions or pointwise operations: greyscale, brightness and threshold.
+ * A chain is run a tile at a time. Each tile is read once with the halo of every convolution
+ * in the chain, and the intermediate results only ever cover that tile, so they stay in the cache
+ * and no intermediate image of the full size is created. Pointwise steps are applied to the tile
+ * between the convolutions around them.
+ * The output is the same as applying the steps one by one to whole images: before every convolution,
+ * the pixels of the tile outside of the image are filled in from the intermediate result by the edge policy.
+ * Steps are added in order, and a chain must not be changed once a processor is using it.
+ */
+public class FilterChain {
+    /**
+     * The separator between the steps of a chain written as text.
+     */
+    public static final String SEPARATOR = ">";
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * This method reads a chain written as the names of its steps joined by '>', such as "GREY>BLUR>EDGE".
+     * A step is one of the named kernels, GREY, BRIGHTNESS:factor or THRESHOLD:level.
+     * @param spec the chain as text
+     * @param luma how the GREY steps weigh the channels
+     * @return the chain
+     */
+    public static FilterChain parse(String spec, Luma luma) {
+        FilterChain chain = new FilterChain();
+        for (String token : spec.split(SEPARATOR)) {
+            String name = token.trim().toUpperCase();
+            int colon = name.indexOf(':');
+            String argument = colon < 0 ? null : name.substring(colon + 1);
+            String operation = colon < 0 ? name : name.substring(0, colon);
+            if (operation.equals("GREY")) {
+                chain.grey(luma);
+            } else if (operation.equals("BRIGHTNESS")) {
+                chain.brightness(Double.parseDouble(requireArgument(name, argument)));
+            } else if (operation.equals("THRESHOLD")) {
+                chain.threshold(Integer.parseInt(requireArgument(name, argument)));
+            } else {
+                chain.convolve(Kernel.named(name));
+            }
+        }
+        return chain;
+    }
+
+    private static String requireArgument(String name, String argument) {
+        if (argument == null || argument.isEmpty()) {
+            throw new IllegalArgumentException(name + " needs a value, such as " + name + ":1.5");
+        }
+        return argument;
+    }
+
+    /**
+     * This method adds a convolution to the chain.
+     * @param kernel the kernel to apply
+     * @return this chain
+     */
+    public FilterChain convolve(Kernel kernel) {
+        steps.add(new Step(Step.Kind.CONVOLUTION, kernel.getName(), kernel, null, 0, 0));
+        return this;
+    }
+
+    /**
+     * This method adds the greyscale operation to the chain.
+     * @param luma how the channels are weighed
+     * @return this chain
+     */
+    public FilterChain grey(Luma luma) {
+        steps.add(new Step(Step.Kind.GREY, "GREY", null, luma, 0, 0));
+        return this;
+    }
+
+    /**
+     * This method adds a brightness change to the chain, which multiplies every channel.
+     * @param factor the factor, 1.0 leaves the image as it is
+     * @return this chain
+     */
+    public FilterChain brightness(double factor) {
+        if (!(factor >= 0 && factor < 256)) {
+            throw new IllegalArgumentException("The brightness factor must be at least 0 and below 256, got " + factor);
+        }
+        steps.add(new Step(Step.Kind.BRIGHTNESS, "BRIGHTNESS:" + factor, null, null, factor, 0));
+        return this;
+    }
+
+    /**
+     * This method adds a threshold to the chain, which makes a pixel white if its grey level,
+     * the rounded mean of its channels, is at least the given level, and black otherwise.
+     * @param level the level, 0 to 256
+     * @return this chain
+     */
+    public FilterChain threshold(int level) {
+        if (level < 0 || level > 256) {
+            throw new IllegalArgumentException("The threshold must be from 0 to 256, got " + level);
+        }
+        steps.add(new Step(Step.Kind.THRESHOLD, "THRESHOLD:" + level, null, null, 0, level));
+        return this;
+    }
+
+    /**
+     * @return the names of the steps joined by '>'.
+     */
+    public String getName() {
+        List<String> names = new ArrayList<>();
+        for (Step step : steps) {
+            names.add(step.name);
+        }
+        return String.join(SEPARATOR, names);
+    }
+
+    /**
+     * Two chains with the same name can still differ, such as Gaussians of the same size with different sigmas,
+     * or GREY steps with different weightings; their signatures cannot.
+     * @return the names of the steps with the weights of every kernel and the weighting of every GREY step.
+     */
+    public String getSignature() {
+        List<String> parts = new ArrayList<>();
+        for (Step step : steps) {
+            if (step.kernel != null) {
+                parts.add(step.name + Arrays.toString(step.kernel.getWeights()));
+            }
+            else if (step.luma != null) {
+                parts.add(step.name + "[" + step.luma + "]");
+            }
+            else {
+                parts.add(step.name);
+            }
+        }
+        return String.join(SEPARATOR, parts);
+    }
+
+    /**
+     * @return the number of pixels the chain reads past each side of a tile, the sum of the radii of its kernels.
+     */
+    public int getRadius() {
+        int radius = 0;
+        for (Step step : steps) {
+            if (step.kernel != null) {
+                radius += step.kernel.getRadius();
+            }
+        }
+        return radius;
+    }
+
+    /**
+     * @return the kernel if the chain is a single convolution, or null.
+     */
+    public Kernel getSingleKernel() {
+        return steps.size() == 1 ? steps.get(0).kernel : null;
+    }
+
+    /**
+     * @return the weighting if the chain is a single greyscale operation, or null.
+     */
+    public Luma getSingleGrey() {
+        return steps.size() == 1 ? steps.get(0).luma : null;
+    }
+
+    /**
+     * A chain which turns the image grey or black and white keeps it grey, as every step treats
+     * the three channels alike, so its output fits in a {@link GreyRaster}.
+     * @return whether every pixel of the output is grey
+     */
+    public boolean producesGrey() {
+        for (Step step : steps) {
+            if (step.kind == Step.Kind.GREY || step.kind == Step.Kind.THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method runs the chain on one tile.
+     * The window holds the tile and the halo of the whole chain around it, already filled in by the edge policy
+     * where it lies outside of the image. It is used as scratch space.
+     * @param window the pixels of the tile and its halo
+     * @param left the column of the image the first column of the window lies on
+     * @param top the row of the image the first row of the window lies on
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @param edge how pixels outside of the image are read
+     * @param precision the arithmetic the steps are applied with
+     * @param dest the raster the tile is written to
+     * @param destX the left edge of the tile in the destination
+     * @param destY the top edge of the tile in the destination
+     */
+    public void apply(Raster window, int left, int top, int imageWidth, int imageHeight, EdgePolicy edge,
+                      Precision precision, Raster dest, int destX, int destY) {
+        Raster current = window;
+        for (Step step : steps) {
+            if (step.kernel == null) {
+                step.applyPointwise(current, precision);
+                continue;
+            }
+            refillEdges(current, left, top, imageWidth, imageHeight, edge);
+            int radius = step.kernel.getRadius();
+            Raster next = new Raster(current.getWidth() - 2 * radius, current.getHeight() - 2 * radius);
+            if (precision == Precision.FIXED_POINT) {
+                FixedPointConvolution.apply(current, step.kernel, edge, radius, radius, next.getWidth(), next.getHeight(), next, 0, 0);
+            }
+            else {
+                Convolution.apply(current, step.kernel, edge, radius, radius, next.getWidth(), next.getHeight(), next, 0, 0);
+            }
+            current = next;
+            left += radius;
+            top += radius;
+        }
+        current.copyRegion(0, 0, current.getWidth(), current.getHeight(), dest, destX, destY);
+    }
+
+    /**
+     * This method sets the pixels of a window which lie outside of the image as the edge policy says,
+     * reading the pixels inside of the image from the window itself.
+     * Under {@link EdgePolicy#WRAP} every step of the chain keeps the window periodic, so nothing needs to change.
+     * Under the other policies the pixels they read lie between the tile and the edge of the image,
+     * which is inside the window.
+     */
+    private static void refillEdges(Raster window, int left, int top, int imageWidth, int imageHeight, EdgePolicy edge) {
+        int width = window.getWidth();
+        int height = window.getHeight();
+        if (edge == EdgePolicy.WRAP
+                || (left >= 0 && top >= 0 && left + width <= imageWidth && top + height <= imageHeight)) {
+            return;
+        }
+        int[] pixels = window.getPixels();
+        for (int j = 0; j < height; j++) {
+            int row = edge.index(top + j, imageHeight);
+            boolean rowInside = top + j >= 0 && top + j < imageHeight;
+            for (int i = 0; i < width; i++) {
+                if (rowInside && left + i >= 0 && left + i < imageWidth) {
+                    continue;
+                }
+                int column = edge.index(left + i, imageWidth);
+                pixels[j * width + i] = row < 0 || column < 0 ? Raster.BORDER_GREY
+                        : pixels[(row - top) * width + column - left];
+            }
+        }
+    }
+
+    /**
+     * One step of a chain: a convolution or a pointwise operation.
+     */
+    private static class Step {
+        enum Kind { CONVOLUTION, GREY, BRIGHTNESS, THRESHOLD }
+
+        private final Kind kind;
+        private final String name;
+        private final Kernel kernel;
+        private final Luma luma;
+        private final double factor;
+        private final int level;
+
+        Step(Kind kind, String name, Kernel kernel, Luma luma, double factor, int level) {
+            this.kind = kind;
+            this.name = name;
+            this.kernel = kernel;
+            this.luma = luma;
+            this.factor = factor;
+            this.level = level;
+        }
+
+        /**
+         * This method applies a pointwise step to every pixel of a raster, in place.
+         */
+        void applyPointwise(Raster raster, Precision precision) {
+            if (kind == Kind.GREY) {
+                Greyscale.apply(raster, luma, precision, 0, 0, raster.getWidth(), raster.getHeight(), raster, 0, 0);
+                return;
+            }
+            int[] pixels = raster.getPixels();
+            if (kind == Kind.THRESHOLD) {
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = GreyRaster.toGrey(pixels[i]) >= level ? 0xFFFFFFFF : 0xFF000000;
+                }
+                return;
+            }
+            if (precision == Precision.FIXED_POINT) {
+                int scale = (int) Math.round(factor * (1 << FixedPointConvolution.FRACTION_BITS));
+                int half = 1 << (FixedPointConvolution.FRACTION_BITS - 1);
+                for (int i = 0; i < pixels.length; i++) {
+                    int argb = pixels[i];
+                    pixels[i] = Raster.pack(
+                            Math.min(255, (Raster.red(argb) * scale + half) >> FixedPointConvolution.FRACTION_BITS),
+                            Math.min(255, (Raster.green(argb) * scale + half) >> FixedPointConvolution.FRACTION_BITS),
+                            Math.min(255, (Raster.blue(argb) * scale + half) >> FixedPointConvolution.FRACTION_BITS));
+                }
+                return;
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                int argb = pixels[i];
+                pixels[i] = Raster.pack(Convolution.toChannel(Raster.red(argb) * factor),
+                        Convolution.toChannel(Raster.green(argb) * factor), Convolution.toChannel(Raster.blue(argb) * factor));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The outcome of filtering one image: the filtered pixels and some information about the job.
+ */
+public class FilterResult {
+    private final PixelBuffer pixels;
+    private final int width;
+    private final int height;
+    private final String filterType;
+    private final String filename;
+    private final boolean saved;
+    private final long elapsedNanos;
+
+    /**
+     * Constructor to create a result.
+     * @param raster the filtered pixels
+     * @param filterType the filter that was applied
+     * @param filename the filename the output was, or would have been, saved under
+     * @param saved whether the output was written to the file
+     * @param elapsedNanos how long the job took, from reading the input to the end of saving
+     */
+    public FilterResult(Raster raster, String filterType, String filename, boolean saved, long elapsedNanos) {
+        this(raster, raster.getWidth(), raster.getHeight(), filterType, filename, saved, elapsedNanos);
+    }
+
+    /**
+     * Constructor to create a result which may have no pixels, because they were held off heap
+     * and freed once they were saved.
+     * @param pixels the filtered pixels, or null
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param filterType the filter that was applied
+     * @param filename the filename the output was, or would have been, saved under
+     * @param saved whether the output was written to the file
+     * @param elapsedNanos how long the job took, from reading the input to the end of saving
+     */
+    public FilterResult(PixelBuffer pixels, int width, int height, String filterType, String filename, boolean saved, long elapsedNanos) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.filterType = filterType;
+        this.filename = filename;
+        this.saved = saved;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the filtered pixels, or null if they are not ARGB pixels on the heap. If the processor had a
+     * raster pool they were borrowed from it, and can be given back once they are no longer needed.
+     */
+    public Raster getRaster() {
+        return pixels instanceof Raster ? (Raster) pixels : null;
+    }
+
+    /**
+     * @return the filtered pixels, a {@link GreyRaster} for the GREY filter, or null if they were held off heap.
+     */
+    public PixelBuffer getPixels() {
+        return pixels;
+    }
+
+    public String getFilterType() {
+        return filterType;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public boolean isSaved() {
+        return saved;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
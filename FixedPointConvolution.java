@@ -0,0 +1,208 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The integer counterpart of {@link Convolution}.
+ * Channels are read as unsigned 8-bit integers and every weight is turned into a Q14 fixed-point value,
+ * round(weight * 2^14), so a pixel is filtered with integer multiply-adds only. The rounding rule is:
+ * <ul>
+ * <li>A kernel applied directly sums channel * Q14 weight over its window into acc, and the channel
+ * is (acc + 2^13) >> 14 saturated to 0..255.</li>
+ * <li>A separable kernel quantises its two vectors separately. The horizontal pass sums
+ * channel * Q14 weight without rounding, the vertical pass sums those with Q14 weights into acc,
+ * and the channel is (acc + 2^27) >> 28 saturated to 0..255.</li>
+ * <li>GREY follows the fixed-point rule of {@link Greyscale}.</li>
+ * </ul>
+ * Arithmetic shifts round towards minus infinity, so every case rounds halves up, as Math.round does.
+ * Nothing is rounded in between, so the output does not depend on how the image is cut into tiles.
+ */
+public class FixedPointConvolution {
+    /**
+     * The number of fractional bits of a fixed-point weight.
+     */
+    public static final int FRACTION_BITS = 14;
+
+    private static final int ONE = 1 << FRACTION_BITS;
+    private static final int HALF = ONE >> 1;
+    private static final long SEPARABLE_HALF = 1L << (2 * FRACTION_BITS - 1);
+
+    /**
+     * The largest plane, in values, kept for reuse by a thread.
+     */
+    private static final int MAX_REUSED_PLANE = 1 << 20;
+
+    /**
+     * The channel planes of the horizontal pass, kept by each worker so tiles do not allocate them.
+     */
+    private static final ThreadLocal<int[][]> PLANES = ThreadLocal.withInitial(() -> new int[3][0]);
+
+    private FixedPointConvolution() {
+    }
+
+    /**
+     * This method turns weights into Q14 fixed-point values.
+     * The sum of a window must fit in an int, so the absolute weights may add up to at most
+     * Integer.MAX_VALUE / (255 * 2^14), which is about 514.
+     * @param weights the weights
+     * @return the fixed-point weights
+     */
+    public static int[] quantize(float[] weights) {
+        int[] fixed = new int[weights.length];
+        long total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            fixed[i] = Math.round(weights[i] * ONE);
+            total += Math.abs(fixed[i]);
+        }
+        if (total * 255 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The weights are too large for fixed-point filtering");
+        }
+        return fixed;
+    }
+
+    /**
+     * Applies a kernel to a region of an image in fixed point, taking the two-pass path when the kernel is separable.
+     * The source is read in place and the edge policy decides which pixels are read outside of the image.
+     * @param source The whole input image. It is only read.
+     * @param kernel The kernel.
+     * @param edge How pixels outside of the image are read.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the filtered region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void apply(Raster source, Kernel kernel, EdgePolicy edge, int x, int y, int width, int height,
+                             Raster dest, int destX, int destY) {
+        if (kernel.isSeparable()) {
+            applySeparable(source, quantize(kernel.getAlongX()), quantize(kernel.getAlongY()), edge,
+                    x, y, width, height, dest, destX, destY);
+            return;
+        }
+
+        int size = kernel.getSize();
+        int radius = kernel.getRadius();
+        int[] weights = quantize(kernel.getWeights());
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] input = source.getPixels();
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+
+        for (int j = 0; j < height; j++) {
+            int top = y + j - radius;
+            boolean rowsInside = top >= 0 && top + size <= sourceHeight;
+            for (int i = 0; i < width; i++) {
+                int left = x + i - radius;
+                boolean inside = rowsInside && left >= 0 && left + size <= sourceWidth;
+
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+
+                for (int ky = 0; ky < size; ky++) {
+                    int rowStart = (top + ky) * sourceWidth + left;
+                    for (int kx = 0; kx < size; kx++) {
+                        int argb = inside ? input[rowStart + kx] : edge.argb(source, left + kx, top + ky);
+                        int weight = weights[ky * size + kx];
+                        red += Raster.red(argb) * weight;
+                        green += Raster.green(argb) * weight;
+                        blue += Raster.blue(argb) * weight;
+                    }
+                }
+
+                output[(destY + j) * outputWidth + destX + i] = Raster.pack(
+                        saturate((red + HALF) >> FRACTION_BITS),
+                        saturate((green + HALF) >> FRACTION_BITS),
+                        saturate((blue + HALF) >> FRACTION_BITS));
+            }
+        }
+    }
+
+    /**
+     * Applies a separable filter to a region of an image in fixed point, as a horizontal pass followed by a vertical pass.
+     * @param source The whole input image. It is only read.
+     * @param alongX The Q14 weights of the horizontal pass.
+     * @param alongY The Q14 weights of the vertical pass.
+     * @param edge How pixels outside of the image are read.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the filtered region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void applySeparable(Raster source, int[] alongX, int[] alongY, EdgePolicy edge,
+                                      int x, int y, int width, int height, Raster dest, int destX, int destY) {
+        int radiusX = alongX.length / 2;
+        int radiusY = alongY.length / 2;
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] input = source.getPixels();
+        int rows = height + alongY.length - 1;
+
+        int[][] planes = planes(width * rows);
+        int[] red = planes[0];
+        int[] green = planes[1];
+        int[] blue = planes[2];
+        for (int row = 0; row < rows; row++) {
+            int sourceRow = y - radiusY + row;
+            boolean rowInside = sourceRow >= 0 && sourceRow < sourceHeight;
+            int rowStart = sourceRow * sourceWidth;
+            for (int i = 0; i < width; i++) {
+                int left = x + i - radiusX;
+                boolean inside = rowInside && left >= 0 && left + alongX.length <= sourceWidth;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int k = 0; k < alongX.length; k++) {
+                    int argb = inside ? input[rowStart + left + k] : edge.argb(source, left + k, sourceRow);
+                    r += Raster.red(argb) * alongX[k];
+                    g += Raster.green(argb) * alongX[k];
+                    b += Raster.blue(argb) * alongX[k];
+                }
+                red[row * width + i] = r;
+                green[row * width + i] = g;
+                blue[row * width + i] = b;
+            }
+        }
+
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                long r = 0;
+                long g = 0;
+                long b = 0;
+                for (int l = 0; l < alongY.length; l++) {
+                    int index = (j + l) * width + i;
+                    r += (long) red[index] * alongY[l];
+                    g += (long) green[index] * alongY[l];
+                    b += (long) blue[index] * alongY[l];
+                }
+                output[(destY + j) * outputWidth + destX + i] = Raster.pack(
+                        saturate((r + SEPARABLE_HALF) >> (2 * FRACTION_BITS)),
+                        saturate((g + SEPARABLE_HALF) >> (2 * FRACTION_BITS)),
+                        saturate((b + SEPARABLE_HALF) >> (2 * FRACTION_BITS)));
+            }
+        }
+    }
+
+    private static int[][] planes(int length) {
+        if (length > MAX_REUSED_PLANE) {
+            return new int[3][length];
+        }
+        int[][] planes = PLANES.get();
+        if (planes[0].length < length) {
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = new int[length];
+            }
+        }
+        return planes;
+    }
+
+    private static int saturate(long value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,99 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The GREY filter, which turns every pixel into its grey level.
+ * In floating point the level is the weighted sum of the channels rounded to 8 bits.
+ * In fixed point the {@link Luma#AVERAGE} level is (red + green + blue + 1) / 3 in integer division,
+ * and a weighted level is (red * r + green * g + blue * b + 2^13) >> 14, where r and g are the
+ * Q14 weights of red and green and b is what is left of 2^14, so the weights still add up to one.
+ * The levels can be written either as grey ARGB pixels or as the bytes of a {@link GreyRaster}.
+ */
+public class Greyscale {
+    private static final int ONE = 1 << FixedPointConvolution.FRACTION_BITS;
+    private static final int HALF = ONE >> 1;
+
+    private Greyscale() {
+    }
+
+    /**
+     * Applies the greyscale operation to a region of an image, writing grey ARGB pixels.
+     * @param source The whole input image. It is only read.
+     * @param luma How the channels are weighed.
+     * @param precision The arithmetic the levels are found with.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The raster the region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void apply(Raster source, Luma luma, Precision precision, int x, int y, int width, int height,
+                             Raster dest, int destX, int destY) {
+        int[] input = source.getPixels();
+        int[] output = dest.getPixels();
+        int[] fixed = precision == Precision.FIXED_POINT ? fixedWeights(luma) : null;
+        for (int j = 0; j < height; j++) {
+            int rowStart = (y + j) * source.getWidth() + x;
+            int outputStart = (destY + j) * dest.getWidth() + destX;
+            for (int i = 0; i < width; i++) {
+                int grey = grey(input[rowStart + i], luma, fixed);
+                output[outputStart + i] = Raster.pack(grey, grey, grey);
+            }
+        }
+    }
+
+    /**
+     * Applies the greyscale operation to a region of an image, writing one byte for every pixel.
+     * @param source The whole input image. It is only read.
+     * @param luma How the channels are weighed.
+     * @param precision The arithmetic the levels are found with.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param width The width of the region.
+     * @param height The height of the region.
+     * @param dest The grey raster the region is written to.
+     * @param destX The left edge of the region in the destination.
+     * @param destY The top edge of the region in the destination.
+     */
+    public static void apply(Raster source, Luma luma, Precision precision, int x, int y, int width, int height,
+                             GreyRaster dest, int destX, int destY) {
+        int[] input = source.getPixels();
+        byte[] output = dest.getPixels();
+        int[] fixed = precision == Precision.FIXED_POINT ? fixedWeights(luma) : null;
+        for (int j = 0; j < height; j++) {
+            int rowStart = (y + j) * source.getWidth() + x;
+            int outputStart = (destY + j) * dest.getWidth() + destX;
+            for (int i = 0; i < width; i++) {
+                output[outputStart + i] = (byte) grey(input[rowStart + i], luma, fixed);
+            }
+        }
+    }
+
+    /**
+     * This method finds the grey level of a pixel.
+     * @param argb the packed pixel
+     * @param luma how the channels are weighed
+     * @param fixed the Q14 weights for fixed point, or null for floating point
+     * @return the grey level, 0 to 255
+     */
+    private static int grey(int argb, Luma luma, int[] fixed) {
+        int red = Raster.red(argb);
+        int green = Raster.green(argb);
+        int blue = Raster.blue(argb);
+        if (fixed == null) {
+            double level = (red * luma.getRed() + green * luma.getGreen() + blue * luma.getBlue()) / 255.0;
+            return Raster.toByte(Raster.clampRGB(level));
+        }
+        if (luma == Luma.AVERAGE) {
+            return (red + green + blue + 1) / 3;
+        }
+        return (red * fixed[0] + green * fixed[1] + blue * fixed[2] + HALF) >> FixedPointConvolution.FRACTION_BITS;
+    }
+
+    private static int[] fixedWeights(Luma luma) {
+        int red = (int) Math.round(luma.getRed() * ONE);
+        int green = (int) Math.round(luma.getGreen() * ONE);
+        return new int[] {red, green, ONE - red - green};
+    }
+}
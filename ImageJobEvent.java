@@ -0,0 +1,30 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event covering one run of an {@link ImageProcessorMT}, from reading its input to saving its output.
+ */
+@Name("com.kcl.osc.imageprocessor.ImageJob")
+@Label("Image Job")
+@Category({"Image Processor", "Jobs"})
+@Description("An image processor running from start to finish")
+class ImageJobEvent extends jdk.jfr.Event {
+    @Label("Output File")
+    String filename;
+
+    @Label("Filter")
+    String filter;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
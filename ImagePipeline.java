@@ -0,0 +1,404 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Processes a batch of image files as a pipeline of three stages: decoding, filtering and encoding.
+ * Each stage has its own pool of workers and the stages are connected by bounded queues,
+ * so reading the next file, filtering the current one and compressing the previous one
+ * happen at the same time. The queues also stop a fast stage from running far ahead of a slow one.
+ * Several filters can be applied to every image: the image is then decoded once, and the filters
+ * run at the same time on the tile engine, all reading the same pixels and each writing its own output.
+ */
+public class ImagePipeline {
+    private static final Job POISON = new Job(null, null, 0, null);
+
+    private List<String> filterTypes;
+    private int slicesPerImage;
+    private int decodeThreads;
+    private int filterThreads;
+    private int encodeThreads;
+    private int queueCapacity;
+    private MemoryBudget memoryBudget;
+    private RasterPool rasterPool;
+    private ResultCache resultCache;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Constructor to create a pipeline.
+     * @param filterType the type of filter applied to every image
+     * @param slicesPerImage the minimum number of slices each image is split into
+     * @param decodeThreads the number of workers reading files
+     * @param filterThreads the number of images being filtered at the same time
+     * @param encodeThreads the number of workers writing PNG files
+     * @param queueCapacity the number of images that may wait between two stages
+     */
+    public ImagePipeline(String filterType, int slicesPerImage, int decodeThreads, int filterThreads, int encodeThreads, int queueCapacity) {
+        this(Collections.singletonList(filterType), slicesPerImage, decodeThreads, filterThreads, encodeThreads, queueCapacity);
+    }
+
+    /**
+     * Constructor to create a pipeline which writes one output for each of several filters.
+     * @param filterTypes the types of filter applied to every image
+     * @param slicesPerImage the minimum number of slices each image is split into
+     * @param decodeThreads the number of workers reading files
+     * @param filterThreads the number of images being filtered at the same time
+     * @param encodeThreads the number of workers writing PNG files
+     * @param queueCapacity the number of images that may wait between two stages
+     */
+    public ImagePipeline(List<String> filterTypes, int slicesPerImage, int decodeThreads, int filterThreads, int encodeThreads, int queueCapacity) {
+        if (filterTypes.isEmpty()) {
+            throw new IllegalArgumentException("A pipeline needs at least one filter");
+        }
+        this.filterTypes = new ArrayList<>(filterTypes);
+        this.slicesPerImage = slicesPerImage;
+        this.decodeThreads = decodeThreads;
+        this.filterThreads = filterThreads;
+        this.encodeThreads = encodeThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * This method sets the budget of pixels the pipeline may hold at the same time.
+     * A file is only decoded once there is room for its decoded pixels and for a full-size raster for each
+     * of its outputs, all taken at once so a filter never waits for room while holding an image.
+     * The room of the decoded pixels is given back once every filter is done with them,
+     * and the room of each output once it is written.
+     * @param memoryBudget the budget, or null for no limit
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * This method sets the pool the decoded and filtered rasters are borrowed from.
+     * Each raster is given back as soon as the stage after it is done with it,
+     * so a batch of same-sized images keeps reusing the same few buffers.
+     * @param rasterPool the pool, or null to allocate new rasters
+     */
+    public void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    /**
+     * This method sets the cache of outputs the pipeline looks every output up in before decoding a file.
+     * A file whose outputs are all cached is not decoded at all; the cached outputs are put in place
+     * of the ones it would write. The outputs which are written are stored in the cache.
+     * @param resultCache the cache shared by the runs of a batch, or null to always filter every file
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * This method sets how hard the output PNG files are compressed, trading encoding time for file size.
+     * Each file is compressed on every core of the tile engine.
+     * @param compressionLevel the deflate level, from 0 for the fastest to 9 for the smallest files,
+     *                         or -1 for the default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * This method runs every file through the pipeline and returns once all of the outputs are written.
+     * The output of each file is saved in the working directory under its name followed by "_filtered.png";
+     * when several filters are applied, the name of the filter comes before "_filtered.png".
+     * A file which fails in any stage is reported and skipped.
+     * @param files the image files to process
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void process(Collection<File> files) throws InterruptedException {
+        BlockingQueue<File> input = new LinkedBlockingQueue<>(files);
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> filtered = new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+        ExecutorService filterers = Executors.newFixedThreadPool(filterThreads);
+        ExecutorService encoders = Executors.newFixedThreadPool(encodeThreads);
+
+        CountDownLatch decodersDone = new CountDownLatch(decodeThreads);
+        CountDownLatch filterersDone = new CountDownLatch(filterThreads);
+        CountDownLatch encodersDone = new CountDownLatch(encodeThreads);
+
+        for (int i = 0; i < decodeThreads; i++) {
+            decoders.execute(() -> {
+                try {
+                    File file;
+                    while ((file = input.poll()) != null) {
+                        String inputHash = null;
+                        List<String> pending = filterTypes;
+                        if (resultCache != null) {
+                            try {
+                                inputHash = ResultCache.hash(file);
+                                pending = fetchCached(file.getName(), inputHash);
+                            }
+                            catch (IOException e) {
+                                System.err.println("Could not look up " + file + " in the result cache: " + e);
+                            }
+                            if (pending.isEmpty()) {
+                                continue;
+                            }
+                        }
+                        Raster raster;
+                        long bytes = 0;
+                        try {
+                            if (memoryBudget != null) {
+                                bytes = RasterIO.decodedBytes(file) * (1 + pending.size());
+                                memoryBudget.acquire(bytes);
+                            }
+                            Metrics.Sample sample = Metrics.begin();
+                            raster = RasterIO.read(file, rasterPool);
+                            Metrics.end(Metrics.Stage.DECODE, sample, (long) raster.getWidth() * raster.getHeight());
+                        }
+                        catch (IOException | RuntimeException e) {
+                            System.err.println("Could not decode " + file + ": " + e);
+                            releaseBudget(bytes);
+                            continue;
+                        }
+                        decoded.put(new Job(file.getName(), raster, bytes, pending, inputHash));
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    decodersDone.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < filterThreads; i++) {
+            filterers.execute(() -> {
+                try {
+                    Job job;
+                    while ((job = decoded.take()) != POISON) {
+                        filter(job, filtered);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    filterersDone.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < encodeThreads; i++) {
+            encoders.execute(() -> {
+                try {
+                    Job job;
+                    while ((job = filtered.take()) != POISON) {
+                        try {
+                            RasterIO.writePng(job.pixels, new File(job.filename), compressionLevel);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            System.err.println("Could not encode " + job.filename + ": " + e);
+                            continue;
+                        }
+                        finally {
+                            releaseRaster(job.pixels);
+                            releaseBudget(job.budgetedBytes);
+                        }
+                        if (job.cacheKey != null) {
+                            try {
+                                resultCache.store(job.cacheKey, new File(job.filename));
+                            }
+                            catch (IOException e) {
+                                System.err.println("Could not cache " + job.filename + ": " + e);
+                            }
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    encodersDone.countDown();
+                }
+            });
+        }
+
+        try {
+            // Each stage is told to stop, one poison job per worker, once the stage before it has drained.
+            decodersDone.await();
+            for (int i = 0; i < filterThreads; i++) {
+                decoded.put(POISON);
+            }
+            filterersDone.await();
+            for (int i = 0; i < encodeThreads; i++) {
+                filtered.put(POISON);
+            }
+            encodersDone.await();
+        }
+        finally {
+            decoders.shutdownNow();
+            filterers.shutdownNow();
+            encoders.shutdownNow();
+        }
+    }
+
+    /**
+     * This method applies every filter to one decoded image and passes the outputs on to the encoders.
+     * The filters run at the same time on the tile engine and share the decoded pixels, which none of them change;
+     * the pixels are given back once all of them have finished. The memory budget of the job holds the decoded
+     * pixels and one raster for each output; each output takes its own raster's room on to the encoders.
+     * @param job the decoded image
+     * @param filtered the queue of the encoders
+     * @throws InterruptedException if the thread is interrupted while waiting for room in the queue
+     */
+    private void filter(Job job, BlockingQueue<Job> filtered) throws InterruptedException {
+        List<String> filterTypes = job.filterTypes;
+        int count = filterTypes.size();
+        List<ImageProcessorMT> processors = new ArrayList<>(count);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                String filterType = filterTypes.get(i);
+                ImageProcessorMT ip = new ImageProcessorMT((Raster) job.pixels, filterType, false,
+                        outputName(job.filename, filterType), slicesPerImage);
+                ip.setRasterPool(rasterPool);
+                ip.setCountsImage(false);
+                processors.add(ip);
+                futures[i] = ip.getFuture();
+            }
+            // The last filter runs on this thread, which would otherwise only wait.
+            for (int i = 0; i < count - 1; i++) {
+                CompletableFuture.runAsync(processors.get(i), TileEngine.getPool());
+            }
+            try {
+                processors.get(count - 1).run();
+            }
+            catch (RuntimeException e) {
+                // The failure is reported through the future of the processor, below.
+            }
+            CompletableFuture.allOf(futures).handle((result, error) -> null).join();
+            // The outputs share one decoded image, so it is counted once however many filters ran.
+            for (CompletableFuture<?> future : futures) {
+                if (!future.isCompletedExceptionally()) {
+                    Metrics.imageProcessed();
+                    break;
+                }
+            }
+        }
+        finally {
+            releaseRaster(job.pixels);
+        }
+
+        long outputBytes = job.budgetedBytes / (count + 1);
+        releaseBudget(job.budgetedBytes - count * outputBytes);
+        for (int i = 0; i < count; i++) {
+            ImageProcessorMT ip = processors.get(i);
+            long share = outputBytes;
+            try {
+                String cacheKey = job.inputHash == null ? null : cacheKey(job.inputHash, filterTypes.get(i));
+                filtered.put(new Job(ip.getOutputFilename(), ip.getFuture().join().getPixels(), share, cacheKey));
+            }
+            catch (RuntimeException e) {
+                System.err.println("Could not filter " + job.filename + " with " + filterTypes.get(i) + ": " + e);
+                releaseBudget(share);
+            }
+        }
+    }
+
+    /**
+     * This method puts the cached outputs of a file in place.
+     * An output that cannot be looked up, for example because its filter type is not valid, counts as not cached.
+     * @param filename the name of the file
+     * @param inputHash the hash of the file
+     * @return the filters whose outputs were not cached
+     */
+    private List<String> fetchCached(String filename, String inputHash) {
+        List<String> pending = new ArrayList<>();
+        for (String filterType : filterTypes) {
+            try {
+                if (resultCache.fetch(cacheKey(inputHash, filterType), new File(outputName(filename, filterType)))) {
+                    continue;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // The output is filtered as usual, and any problem with the filter is reported then.
+            }
+            pending.add(filterType);
+        }
+        return pending;
+    }
+
+    /**
+     * This method makes the key the output of one filter is cached under. The filters of the pipeline
+     * run with the default settings of {@link ImageProcessorMT}.
+     */
+    private String cacheKey(String inputHash, String filterType) {
+        FilterChain chain = FilterChain.parse(filterType, Luma.AVERAGE);
+        return ResultCache.key(inputHash, ResultCache.describe(chain, EdgePolicy.CONSTANT, Precision.FLOAT, compressionLevel));
+    }
+
+    private void releaseBudget(long bytes) {
+        if (memoryBudget != null && bytes > 0) {
+            memoryBudget.release(bytes);
+        }
+    }
+
+    private void releaseRaster(PixelBuffer pixels) {
+        if (rasterPool != null && pixels instanceof Raster) {
+            rasterPool.release((Raster) pixels);
+        }
+    }
+
+    /**
+     * This method gives the name the output of a file is saved under. When several filters are applied,
+     * the filter is part of the name, with anything but letters, digits, dots and dashes replaced by a dash.
+     */
+    private String outputName(String filename, String filterType) {
+        if (filterTypes.size() == 1) {
+            return filename + "_filtered.png";
+        }
+        return filename + "_" + filterType.replaceAll("[^A-Za-z0-9.-]+", "-") + "_filtered.png";
+    }
+
+    /**
+     * An image on its way between two stages. Decoded images are always rasters named after their file,
+     * with the filters still to be applied to them; filtered ones may be grey rasters,
+     * named after the file they are written to, with the key they are cached under.
+     */
+    private static class Job {
+        private final String filename;
+        private final PixelBuffer pixels;
+        private final long budgetedBytes;
+        private final List<String> filterTypes;
+        private final String inputHash;
+        private final String cacheKey;
+
+        public Job(String filename, PixelBuffer pixels, long budgetedBytes, List<String> filterTypes, String inputHash) {
+            this.filename = filename;
+            this.pixels = pixels;
+            this.budgetedBytes = budgetedBytes;
+            this.filterTypes = filterTypes;
+            this.inputHash = inputHash;
+            this.cacheKey = null;
+        }
+
+        public Job(String filename, PixelBuffer pixels, long budgetedBytes, String cacheKey) {
+            this.filename = filename;
+            this.pixels = pixels;
+            this.budgetedBytes = budgetedBytes;
+            this.filterTypes = null;
+            this.inputHash = null;
+            this.cacheKey = cacheKey;
+        }
+    }
+}
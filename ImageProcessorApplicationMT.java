@@ -1,32 +1,105 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.scene.image.Image;
 import javafx.stage.Stage;
 
 
 public class ImageProcessorApplicationMT extends Application {
     /**
      * Change this constant to change the filtering operation. Options are
-     * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY
+     * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY, or several of them
+     * applied in one pass, joined by '>', such as "GREY>BLUR>EDGE"
      */
     private static final String filter = "GREY";
 
+    /**
+     * Set this to several filters to write one output for each of them from a single run,
+     * such as {"IDENTITY", "BLUR", "SHARPEN", "EDGE"}. Each image is then decoded once and
+     * shared by all of the filters. When it is empty, only the filter above is applied.
+     * It applies to the pipeline, so pipelined has to be set too.
+     */
+    private static final String[] fanOutFilters = {};
+
     /**
      * Set this boolean to false if you do NOT wish the new images to be
      * saved after processing.
      */
     private static final boolean saveNewImages = true;
 
+    /**
+     * Set this boolean to true to run the batch as a pipeline, where decoding, filtering
+     * and encoding of different images overlap. The pipeline always saves the new images, whatever saveNewImages says.
+     */
+    private static final boolean pipelined = false;
+
+    /**
+     * The number of bytes of decoded pixels allowed in memory at the same time.
+     * Images wait to be decoded until there is room for them.
+     */
+    private static final long memoryBudgetBytes = 512L * 1024 * 1024;
+
+    /**
+     * The number of bytes of idle pixel buffers kept for reuse by later images of the batch.
+     */
+    private static final long rasterPoolBytes = 256L * 1024 * 1024;
+
+    /**
+     * Set this to a directory, such as new File(".imagecache"), to cache the outputs there from one run
+     * to the next, so an image which has not changed since an earlier run with the same filter is not
+     * processed again. When it is null, every image is processed.
+     */
+    private static final File resultCacheDirectory = null;
+
+    /**
+     * The number of bytes of outputs the cache may hold.
+     */
+    private static final long resultCacheBytes = 1024L * 1024 * 1024;
+
+    /**
+     * Set this to a file, such as new File("metrics.json"), to write the metrics of the batch to it
+     * every few seconds and once more at the end. When it is null, no metrics are written.
+     */
+    private static final File metricsFile = null;
+
     @Override
     public void start(Stage stage) throws Exception{
 
+        if (metricsFile != null) {
+            Metrics.startReporting(metricsFile, 10);
+        }
+        ResultCache resultCache = resultCacheDirectory != null ? new ResultCache(resultCacheDirectory, resultCacheBytes) : null;
+        if (pipelined) {
+            System.out.println("Working.");
+            final long start = System.currentTimeMillis();
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            List<String> filters = fanOutFilters.length > 0 ? Arrays.asList(fanOutFilters) : Collections.singletonList(filter);
+            ImagePipeline pipeline = new ImagePipeline(filters, 2, 2, 2, Math.max(1, cores / 2), 4);
+            pipeline.setMemoryBudget(new MemoryBudget(memoryBudgetBytes));
+            pipeline.setRasterPool(new RasterPool(rasterPoolBytes));
+            pipeline.setResultCache(resultCache);
+            pipeline.process(findImageFiles());
+
+            System.out.println("Done.");
+            final long end = System.currentTimeMillis();
+            System.out.println((end - start)/1000.0);
+            printCacheCounts(resultCache);
+
+            stopReporting();
+            Platform.exit();
+            return;
+        }
+
         // gets the images from the 'img' folder.
         ArrayList<ImageProcessorApplicationMT.ImageInfo> images = findImages();
 
@@ -34,11 +107,16 @@ public class ImageProcessorApplicationMT extends Application {
         System.out.println("Working.");
         final long start = System.currentTimeMillis();
         ThreadManager threadManager = new ThreadManager(8);
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetBytes);
+        RasterPool rasterPool = new RasterPool(rasterPoolBytes);
 
 
         for(int i = 0; i < images.size(); i++) {
-            ImageProcessorMT ip = new ImageProcessorMT(images.get(i).getImage(),filter,saveNewImages,images.get(i).getFilename() + "_filtered.png");
-            threadManager.addImageProcessor(ip);
+            ImageProcessorMT ip = new ImageProcessorMT(images.get(i).getFile(),filter,saveNewImages,images.get(i).getFilename() + "_filtered.png",2);
+            ip.setMemoryBudget(memoryBudget);
+            ip.setRasterPool(rasterPool);
+            ip.setResultCache(resultCache);
+            threadManager.submit(ip).thenAccept(result -> rasterPool.release(result.getRaster()));
         }
         threadManager.start();
         new Thread(threadManager).start();
@@ -47,28 +125,54 @@ public class ImageProcessorApplicationMT extends Application {
         System.out.println("Done.");
         final long end = System.currentTimeMillis();
         System.out.println((end - start)/1000.0);
+        printCacheCounts(resultCache);
+        stopReporting();
 
         // Kill this application
         Platform.exit();
     }
 
+    private static void stopReporting() throws IOException {
+        if (metricsFile != null) {
+            Metrics.stopReporting(metricsFile);
+        }
+    }
+
+    private static void printCacheCounts(ResultCache resultCache) {
+        if (resultCache != null) {
+            System.out.println("Result cache: " + resultCache.getHits() + " hits, " + resultCache.getMisses() + " misses");
+        }
+    }
+
     /**
      * This method expects all of the images that are to be processed to
      * be in a folder called img that is in the current working directory.
      * In Eclipse, for example, this means the img folder should be in the project
      * folder (alongside src and bin).
+     * The images are not decoded here; each one is decoded when it is processed.
      * @return Info about the images found in the folder.
      */
     private ArrayList<ImageProcessorApplicationMT.ImageInfo> findImages() {
         ArrayList<ImageProcessorApplicationMT.ImageInfo> images = new ArrayList<ImageProcessorApplicationMT.ImageInfo>();
+        for (File f: findImageFiles()) {
+            ImageProcessorApplicationMT.ImageInfo info = new ImageProcessorApplicationMT.ImageInfo(f);
+            images.add(info);
+        }
+        return images;
+    }
+
+    /**
+     * This method finds the image files in the 'img' folder without decoding them.
+     * @return the image files found in the folder.
+     */
+    private ArrayList<File> findImageFiles() {
+        ArrayList<File> images = new ArrayList<File>();
         Collection<File> files = listFileTree(new File("img"));
         for (File f: files) {
             if (f.getName().startsWith(".")) {
                 continue;
             }
-            Image img = new Image("file:" + f.getPath());
-            ImageProcessorApplicationMT.ImageInfo info = new ImageProcessorApplicationMT.ImageInfo(img, f.getName());
-            images.add(info);
+            images.add(f);
         }
         return images;
     }
@@ -91,17 +195,20 @@ public class ImageProcessorApplicationMT extends Application {
     }
 
 
+    /**
+     * A handle to an image file, which is only decoded by the processor it is given to.
+     */
     private static class ImageInfo {
-        private Image image;
+        private File file;
         private String filename;
 
-        public ImageInfo(Image image, String filename) {
-            this.image = image;
-            this.filename = filename;
+        public ImageInfo(File file) {
+            this.file = file;
+            this.filename = file.getName();
         }
 
-        public Image getImage() {
-            return image;
+        public File getFile() {
+            return file;
         }
 
         public String getFilename() {
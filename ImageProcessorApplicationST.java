@@ -14,7 +14,8 @@ public class ImageProcessorApplicationST extends Application {
 	
 	/**
 	 * Change this constant to change the filtering operation. Options are
-	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY
+	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY, or several of them
+	 * applied in one pass, joined by '>', such as "GREY>BLUR>EDGE"
 	 */
 	private static final String filter = "SHARPEN";
 	
@@ -30,6 +31,7 @@ public class ImageProcessorApplicationST extends Application {
 		ArrayList<ImageInfo> images = findImages();
 
     	System.out.println("Working.");
+    	final long start = System.currentTimeMillis();
 
 		// for each image creates and runs an ImageProcessor to process the image.
     	for (int i = 0; i < images.size(); i++) {
@@ -38,6 +40,8 @@ public class ImageProcessorApplicationST extends Application {
     	}
 
     	System.out.println("Done.");
+    	final long end = System.currentTimeMillis();
+    	System.out.println((end - start)/1000.0);
     	
     	// Kill this application
 		Platform.exit();
@@ -0,0 +1,225 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.stage.Stage;
+
+/**
+ * Benchmarks the image processors and writes the results as JSON, so runs of two builds can be compared.
+ * It covers every filter with the ST and MT processors, the tile engine with 1 to N worker threads,
+ * the ThreadManager with different pool sizes, and the sample images in the 'img' folder.
+ * Synthetic images go from tiny to 12 MP; pass --large to add a 50 MP image and --quick for fewer iterations.
+ * The results are written to the file given by --out=, or to benchmark-results.json.
+ */
+public class ImageProcessorBenchmark extends Application {
+
+    private static final String[] FILTERS = {"IDENTITY", "BLUR", "SHARPEN", "EDGE", "EMBOSS", "GREY"};
+
+    /**
+     * The number of images in each ThreadManager batch.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private List<String> results = new ArrayList<>();
+
+    @Override
+    public void start(Stage stage) throws Exception {
+        List<String> args = getParameters().getRaw();
+        String outputFile = "benchmark-results.json";
+        List<int[]> sizes = new ArrayList<>();
+        sizes.add(new int[] {64, 64});
+        sizes.add(new int[] {1024, 1024});
+        sizes.add(new int[] {4000, 3000});
+        for (String arg : args) {
+            if (arg.equals("--quick")) {
+                warmupIterations = 1;
+                measuredIterations = 2;
+            } else if (arg.equals("--large")) {
+                sizes.add(new int[] {8660, 5774});
+            } else if (arg.startsWith("--out=")) {
+                outputFile = arg.substring("--out=".length());
+            }
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Benchmarking.");
+        for (int[] size : sizes) {
+            Raster raster = syntheticImage(size[0], size[1]);
+            Image image = PixelTransfer.write(raster);
+            // Both processors start from the same JavaFX image, so both pay for reading its pixels.
+            for (String filter : FILTERS) {
+                measure("filter", filter, "ST", raster, 1, 0, () -> new ImageProcessorST(image, filter, false, "").run());
+                measure("filter", filter, "MT", raster, cores, 0, () -> new ImageProcessorMT(image, filter, false, "", cores).run());
+            }
+        }
+
+        Raster scaling = syntheticImage(4000, 3000);
+        for (int threads = 1; threads <= cores; threads++) {
+            // The processors always run on the shared pool, which has a worker per core,
+            // so the tiles are run on a pool of their own with the number of workers measured.
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                measure("threads", "SHARPEN", "MT", scaling, threads, 0, () -> runTiles(pool, scaling, "SHARPEN"));
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+
+        Raster frame = syntheticImage(1024, 1024);
+        for (int poolSize = 1; poolSize <= 2 * cores; poolSize *= 2) {
+            final int pool = poolSize;
+            measure("threadManager", "SHARPEN", "MT", frame, 2, pool, () -> runBatch(frame, "SHARPEN", pool, BATCH_SIZE));
+        }
+
+        for (File file : listImages(new File("img"))) {
+            Raster raster = RasterIO.read(file);
+            for (String filter : FILTERS) {
+                measure("sample:" + file.getName(), filter, "MT", raster, cores, 0, () -> runMT(raster, filter, cores));
+            }
+        }
+
+        writeResults(outputFile);
+        System.out.println("Done. Results written to " + outputFile);
+        Platform.exit();
+    }
+
+    /**
+     * This method times a benchmark body and records its result.
+     * The body is run a few times first so the JIT has compiled the hot loops before timing starts.
+     * @param benchmark the name of the benchmark group
+     * @param filter the filter being applied
+     * @param engine ST or MT
+     * @param raster the input image, used for its size
+     * @param threads the number of threads or slices used
+     * @param poolSize the ThreadManager pool size, or 0 when no ThreadManager is used
+     * @param body the work to time
+     */
+    private void measure(String benchmark, String filter, String engine, Raster raster, int threads, int poolSize, Runnable body) {
+        for (int i = 0; i < warmupIterations; i++) {
+            body.run();
+        }
+        double[] times = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            body.run();
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double time : times) {
+            sum += time;
+            min = Math.min(min, time);
+            max = Math.max(max, time);
+        }
+        double mean = sum / times.length;
+        double squares = 0;
+        for (double time : times) {
+            squares += (time - mean) * (time - mean);
+        }
+        double stdev = Math.sqrt(squares / times.length);
+        double megapixels = (double) raster.getWidth() * raster.getHeight() / 1e6;
+        if (poolSize > 0) {
+            megapixels *= BATCH_SIZE;
+        }
+
+        String result = String.format(Locale.ROOT,
+                "{\"benchmark\":\"%s\",\"filter\":\"%s\",\"engine\":\"%s\",\"width\":%d,\"height\":%d,"
+                        + "\"threads\":%d,\"poolSize\":%d,\"iterations\":%d,\"meanMs\":%.3f,\"minMs\":%.3f,"
+                        + "\"maxMs\":%.3f,\"stdevMs\":%.3f,\"megapixelsPerSecond\":%.3f}",
+                benchmark, filter, engine, raster.getWidth(), raster.getHeight(), threads, poolSize,
+                measuredIterations, mean, min, max, stdev, megapixels / (mean / 1000.0));
+        results.add(result);
+        System.out.println(result);
+    }
+
+    private static void runMT(Raster raster, String filter, int slices) {
+        ImageProcessorMT ip = new ImageProcessorMT(raster, filter, false, "", slices);
+        ip.run();
+    }
+
+    /**
+     * This method filters an image on the tiles of the given pool, cut as the MT processor would cut it
+     * for that many workers.
+     */
+    private static void runTiles(ForkJoinPool pool, Raster raster, String filter) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        TileShape tiles = TileEngine.tileShape(width, height, pool.getParallelism());
+        pool.invoke(new ImageSliceProcessor(raster, new Raster(width, height), FilterChain.parse(filter, Luma.AVERAGE),
+                EdgePolicy.CONSTANT, Precision.FLOAT, 0, 0, width, height, tiles, new AtomicBoolean()));
+    }
+
+    /**
+     * This method filters a batch of copies of one image through a ThreadManager.
+     */
+    private static void runBatch(Raster raster, String filter, int poolSize, int images) {
+        ThreadManager threadManager = new ThreadManager(poolSize);
+        List<CompletableFuture<FilterResult>> futures = new ArrayList<>();
+        for (int i = 0; i < images; i++) {
+            futures.add(threadManager.submit(new ImageProcessorMT(raster, filter, false, "", 2)));
+        }
+        threadManager.start();
+        new Thread(threadManager).start();
+        threadManager.join();
+        futures.forEach(CompletableFuture::join);
+    }
+
+    /**
+     * This method creates an image of random noise. Noise defeats any shortcut a
+     * filter could take on flat areas, so it gives the worst case.
+     */
+    private static Raster syntheticImage(int width, int height) {
+        Random random = new Random(42);
+        Raster raster = new Raster(width, height);
+        int[] pixels = raster.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return raster;
+    }
+
+    private static List<File> listImages(File dir) {
+        List<File> images = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return images;
+        }
+        for (File file : files) {
+            if (file.isFile() && !file.getName().startsWith(".")) {
+                images.add(file);
+            }
+        }
+        return images;
+    }
+
+    private void writeResults(String outputFile) throws IOException {
+        try (Writer writer = new FileWriter(outputFile)) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                writer.write("  " + results.get(i) + (i < results.size() - 1 ? ",\n" : "\n"));
+            }
+            writer.write("]\n");
+        }
+    }
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+}
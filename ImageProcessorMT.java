@@ -1,44 +1,60 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
-import javax.imageio.ImageIO;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 public class ImageProcessorMT implements Runnable {
+    /**
+     * The number of pixels above which an image is held off heap by default.
+     */
+    public static final long DEFAULT_OFF_HEAP_PIXELS = 256L * 1024 * 1024;
+
     private Image image;
+    private Raster source;
+    private File inputFile;
+    private MemoryBudget memoryBudget;
+    private RasterPool rasterPool;
+    private ResultCache resultCache;
+    private String cacheKey;
+    private long offHeapThreshold = DEFAULT_OFF_HEAP_PIXELS;
+    private OffHeapRaster offHeapSource;
+    private OffHeapRaster offHeapOutput;
+    private long budgetedBytes;
+    private long queuedAt;
     private String opfilename;
     private String filterType;
+    private FilterChain chain;
+    private EdgePolicy edgePolicy = EdgePolicy.CONSTANT;
+    private TileShape tileShape;
+    private Precision precision = Precision.FLOAT;
+    private Luma luma = Luma.AVERAGE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
     private boolean save;
-    private boolean hasFinished;
-    private ArrayList<ImageSliceProcessor> imageSliceProcessors;
-    private int SLICE_SIZE;
+    private boolean countsImage = true;
+    private volatile boolean hasFinished;
+    private Runnable onFinished;
     private int NUMBER_OF_THREADS;
+    private CompletableFuture<FilterResult> future;
+    private AtomicBoolean cancelled;
 
 
     /**
      * Constructor to create an Image processor.
-     * Using this constructor would implicitly create two threads working on the image.
+     * Using this constructor the image is split into at least two tiles.
      * @param image the image it has to filter
      * @param filter the type of filter it needs to apply
      * @param save a boolean to indicate if the processor needs to save the image when filtered
      * @param opname the filename under which the filtered image would be saved.
      */
     public ImageProcessorMT(Image image, String filter, boolean save, String opname) {
-
-        this.image = image;
-        this.opfilename = opname;
-        this.imageSliceProcessors = new ArrayList<>();
-        this.filterType = filter;
-        this.save = save;
-        this.NUMBER_OF_THREADS = 2;
-        this.SLICE_SIZE = (int)image.getWidth() / this.NUMBER_OF_THREADS;
+        this(image, filter, save, opname, 2);
     }
 
     /**
@@ -47,74 +63,328 @@ public class ImageProcessorMT implements Runnable {
      * @param filter the type of filter it needs to apply
      * @param save a boolean to indicate if the processor needs to save the image when filtered
      * @param opname the filename under which the filtered image would be saved
-     * @param NUMBER_OF_THREADS the number of threads which would be created to apply the filter on this image
+     * @param NUMBER_OF_THREADS the minimum number of tiles the image is split into. The tiles run on the shared tile engine.
      */
     public ImageProcessorMT(Image image, String filter, boolean save, String opname, int NUMBER_OF_THREADS) {
 
         this.image = image;
         this.opfilename = opname;
-        this.imageSliceProcessors = new ArrayList<>();
         this.filterType = filter;
         this.save = save;
         this.NUMBER_OF_THREADS = NUMBER_OF_THREADS;
-        this.SLICE_SIZE = (int)image.getWidth() / this.NUMBER_OF_THREADS;
+        this.cancelled = new AtomicBoolean();
+        this.future = new CompletableFuture<>();
+        // Completing the future from outside, by cancelling it or by a timeout, stops the processor.
+        this.future.whenComplete((result, error) -> {
+            if (error != null) {
+                cancelled.set(true);
+            }
+        });
+    }
+
+    /**
+     * Constructor to create an image processor for pixels which have already been read,
+     * for example the result of an earlier filter.
+     * @param source the pixels it has to filter
+     * @param filter the type of filter it needs to apply
+     * @param save a boolean to indicate if the processor needs to save the image when filtered
+     * @param opname the filename under which the filtered image would be saved
+     * @param NUMBER_OF_THREADS the minimum number of tiles the image is split into. The tiles run on the shared tile engine.
+     */
+    public ImageProcessorMT(Raster source, String filter, boolean save, String opname, int NUMBER_OF_THREADS) {
+        this((Image) null, filter, save, opname, NUMBER_OF_THREADS);
+        this.source = source;
+    }
+
+    /**
+     * Constructor to create an image processor which only decodes its image file when it runs.
+     * Nothing is read from the file until then, so processors can be created for a whole directory up front.
+     * @param inputFile the image file it has to filter
+     * @param filter the type of filter it needs to apply
+     * @param save a boolean to indicate if the processor needs to save the image when filtered
+     * @param opname the filename under which the filtered image would be saved
+     * @param NUMBER_OF_THREADS the minimum number of tiles the image is split into. The tiles run on the shared tile engine.
+     */
+    public ImageProcessorMT(File inputFile, String filter, boolean save, String opname, int NUMBER_OF_THREADS) {
+        this((Image) null, filter, save, opname, NUMBER_OF_THREADS);
+        this.inputFile = inputFile;
+    }
+
+    /**
+     * This method sets the kernel this processor applies instead of the one named by its filter type,
+     * for example a larger Gaussian or an unsharp mask.
+     * @param kernel the kernel to apply
+     */
+    public void setKernel(Kernel kernel) {
+        setFilterChain(new FilterChain().convolve(kernel));
+    }
+
+    /**
+     * This method sets several filters this processor applies one after the other, in a single pass
+     * over the image. The filter type may also name a chain, such as "GREY>BLUR>EDGE".
+     * @param chain the filters to apply
+     */
+    public void setFilterChain(FilterChain chain) {
+        this.chain = chain;
+        this.filterType = chain.getName();
+    }
+
+    /**
+     * This method sets how the kernel treats pixels past the edge of the image. The default is a constant grey.
+     * @param edgePolicy the edge policy
+     */
+    public void setEdgePolicy(EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    /**
+     * This method sets the arithmetic the image is filtered with. The default is floating point.
+     * @param precision the precision
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * This method sets how the GREY filter weighs the channels. The default is their plain average.
+     * @param luma the weighting
+     */
+    public void setLuma(Luma luma) {
+        this.luma = luma;
+    }
+
+    /**
+     * This method sets how hard the saved PNG is compressed, trading encoding time for file size.
+     * @param compressionLevel the deflate level, from 0 for the fastest to 9 for the smallest files,
+     *                         or -1 for the default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * This method sets the size of the tiles the image is cut into.
+     * By default the tile engine picks a shape that fits the L2 cache and splits the image evenly.
+     * @param tileShape the tile shape, or null to pick one automatically
+     */
+    public void setTileShape(TileShape tileShape) {
+        this.tileShape = tileShape;
+    }
+
+    /**
+     * @return the filters this processor applies, read from its filter type unless they were set.
+     */
+    private FilterChain getFilterChain() {
+        if (chain == null) {
+            chain = FilterChain.parse(filterType, luma);
+        }
+        return chain;
+    }
+
+    /**
+     * This method sets the budget the decoded pixels of the image file are taken from.
+     * The processor waits for room in the budget before decoding and gives it back once its output is written.
+     * It only applies to processors created from a file.
+     * @param memoryBudget the budget shared by the processors of a batch
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * This method sets the pool the rasters of this processor are borrowed from.
+     * The pixels it decodes itself are given back to the pool once the output exists.
+     * The output is borrowed from the pool too, and whoever takes it from the result
+     * should give it back once they are done with it.
+     * @param rasterPool the pool shared by the processors of a batch, or null to allocate new rasters
+     */
+    public void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    /**
+     * This method sets whether the processor counts its image in the metrics once its output exists.
+     * A pipeline which runs several processors on one decoded image counts the image itself instead.
+     * @param countsImage true to count the image, which is the default
+     */
+    public void setCountsImage(boolean countsImage) {
+        this.countsImage = countsImage;
+    }
+
+    /**
+     * This method sets the cache of outputs this processor looks its output up in before decoding its file.
+     * On a hit the cached output is put in place of the file it would save, and the result has no pixels;
+     * on a miss the output is stored in the cache once it is saved.
+     * It only applies to processors created from a file which save their output.
+     * @param resultCache the cache shared by the runs of a batch, or null to always filter the image
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * This method sets the size from which images are held off heap, in {@link OffHeapRaster}s.
+     * It applies to the pixels this processor decodes itself, and to the output when the processor saves it.
+     * A file above it is decoded a band of rows at a time straight into the off-heap raster, so it is never
+     * held on the heap as a whole; a JavaFX image given to the processor is already on the heap, and is copied.
+     * Both are freed as soon as the processor finishes, so the result of a job whose output
+     * was held off heap has no raster; an output that is not saved always stays on the heap.
+     * @param pixels the number of pixels above which an image is held off heap
+     */
+    public void setOffHeapThreshold(long pixels) {
+        this.offHeapThreshold = pixels;
     }
 
     /**
      * Runs this image processor.
-     * It creates the threads required for slicing the image and gives each thread
-     * the required the data to access its slice.
+     * It splits the image into tiles which are filtered on the shared tile engine,
+     * and waits for all of them to finish. The future of this processor is completed
+     * with the result, or with the exception that stopped it.
      */
     public void run() {
-        if(filterType.equals("GREY")) {
-            int rowToStartFrom = 0;
-
-            for(int i = 0; i < this.NUMBER_OF_THREADS; i++) {
-                if (i == this.NUMBER_OF_THREADS - 1) {
-                    int sliceSizeForLastThread = (int)image.getWidth() - (i * SLICE_SIZE);
-                    ImageSliceProcessor isp = new ImageSliceProcessor(this.image,this.filterType,sliceSizeForLastThread,rowToStartFrom);
-                    imageSliceProcessors.add(isp);
-                    isp.start();
-                }
-                else {
-                    ImageSliceProcessor isp = new ImageSliceProcessor(this.image,this.filterType,SLICE_SIZE,rowToStartFrom);
-                    imageSliceProcessors.add(isp);
-                    isp.start();
-                }
-                rowToStartFrom += SLICE_SIZE;
+        long start = System.nanoTime();
+        ImageJobEvent event = new ImageJobEvent();
+        event.begin();
+        // The rasters borrowed from the pool, until they are given back or handed to the caller.
+        Raster borrowedSource = null;
+        Raster borrowedOutput = null;
+        try {
+            if (cancelled.get()) {
+                throw new CancellationException();
             }
+            FilterResult cached = fetchCached(start);
+            if (cached != null) {
+                event.width = cached.getWidth();
+                event.height = cached.getHeight();
+                event.succeeded = true;
+                future.complete(cached);
+                return;
+            }
+            boolean decoded = this.source == null;
+            PixelBuffer source = loadSource();
+            if (decoded && rasterPool != null && source instanceof Raster) {
+                borrowedSource = (Raster) source;
+            }
+            FilterChain chain = getFilterChain();
+            int width = source.getWidth();
+            int height = source.getHeight();
 
-        }
-        else {
-            int rowToStartFrom = 0;
-            Color[][] borderedPixels = getImageDataExtended();
-
-            for(int i = 0; i < this.NUMBER_OF_THREADS; i++) {
-                if (i == this.NUMBER_OF_THREADS - 1) {
-                    int sliceSizeForLastThread = (int)image.getWidth() - (i * SLICE_SIZE);
-                    ImageSliceProcessor isp = new ImageSliceProcessor(borderedPixels,this.filterType,sliceSizeForLastThread,rowToStartFrom);
-                    imageSliceProcessors.add(isp);
-                    isp.start();
-                }
-                else {
-                    ImageSliceProcessor isp = new ImageSliceProcessor(borderedPixels,this.filterType,SLICE_SIZE,rowToStartFrom);
-                    imageSliceProcessors.add(isp);
-                    isp.start();
-                }
-                rowToStartFrom += SLICE_SIZE;
+            TileShape tiles = tileShape != null ? tileShape
+                    : TileEngine.tileShape(width, height, this.NUMBER_OF_THREADS);
+            // The tiles write to disjoint regions of one output, so it is complete as soon as they have all finished.
+            // Grey output keeps one byte per pixel, which also makes it a quarter of the size to encode.
+            PixelBuffer output;
+            if (chain.producesGrey() && (long) width * height <= GreyRaster.MAX_PIXELS) {
+                output = new GreyRaster(width, height);
+            }
+            else if (save && (long) width * height > offHeapThreshold) {
+                offHeapOutput = new OffHeapRaster(width, height);
+                output = offHeapOutput;
+            }
+            else if (rasterPool != null) {
+                borrowedOutput = rasterPool.borrow(width, height);
+                output = borrowedOutput;
+            }
+            else {
+                output = new Raster(width, height);
+            }
+            ImageSliceProcessor root = new ImageSliceProcessor(source, output, chain, edgePolicy, precision,
+                    0, 0, width, height, tiles, cancelled);
+            TileEngine.getPool().invoke(root);
+            if (cancelled.get()) {
+                throw new CancellationException();
             }
 
+            if(save) {
+                saveImage(output, opfilename);
+                storeCached();
+            }
+            // The input is no longer needed once the output exists, so it is dropped straight away.
+            if (borrowedSource != null) {
+                rasterPool.release(borrowedSource);
+                borrowedSource = null;
+            }
+            this.source = null;
+            this.image = null;
+            releaseOffHeap();
+            if (countsImage) {
+                Metrics.imageProcessed();
+            }
+            event.width = width;
+            event.height = height;
+            event.succeeded = true;
+            PixelBuffer result = output instanceof OffHeapRaster ? null : output;
+            borrowedOutput = null;
+            future.complete(new FilterResult(result, width, height, filterType, opfilename, save, System.nanoTime() - start));
         }
-
-        for(ImageSliceProcessor isp: imageSliceProcessors) {
-            isp.join();
+        catch (RuntimeException | Error e) {
+            // No tile is running any more, so the rasters of a failed or cancelled job can be reused.
+            if (borrowedSource != null) {
+                rasterPool.release(borrowedSource);
+            }
+            if (borrowedOutput != null) {
+                rasterPool.release(borrowedOutput);
+            }
+            future.completeExceptionally(e);
+            if (!(e instanceof CancellationException)) {
+                throw e;
+            }
         }
-
-        if(save) {
-            saveImage(opfilename);
+        finally {
+            releaseOffHeap();
+            event.end();
+            if (event.shouldCommit()) {
+                event.filename = opfilename;
+                event.filter = filterType;
+                event.commit();
+            }
+            if (budgetedBytes > 0) {
+                memoryBudget.release(budgetedBytes);
+                budgetedBytes = 0;
+            }
+            this.hasFinished = true;
+            if (onFinished != null) {
+                onFinished.run();
+            }
         }
+    }
 
-        this.hasFinished = true;
+    /**
+     * This method gives the future of this processor. It is completed with the filtered image once
+     * the processor has run, so callers can chain further work on it instead of polling {@link #hasFinished()}.
+     * Cancelling the future, or completing it through a timeout, stops the processor at the next tile.
+     * @return the future of the result
+     */
+    public CompletableFuture<FilterResult> getFuture() {
+        return future;
+    }
+
+    /**
+     * This method sets the callback which is run once this processor has finished,
+     * whether it succeeded or not. It is run on the thread that ran the processor.
+     * @param onFinished the callback
+     */
+    public void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * This method records when the processor was put in a waiting list, so the time it waited can be measured.
+     * @param queuedAt the time from System.nanoTime()
+     */
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * @return the filename under which the filtered image would be saved.
+     */
+    public String getOutputFilename() {
+        return opfilename;
     }
 
     /**
@@ -126,59 +396,135 @@ public class ImageProcessorMT implements Runnable {
     }
 
     /**
-     * This method takes the image which was passed to its constructor and adds a grey border around it
-     * @return an array of color pixels.
+     * This method looks the output up in the result cache, and puts it in place if it is there.
+     * The key is kept, so an output that was not cached can be stored under it once it is saved.
+     * A cache that cannot be used is treated as a miss, so the image is filtered as usual.
+     * @param start the time the processor started, from System.nanoTime()
+     * @return the result of the cached output, or null if it has to be filtered
      */
-    private Color[][] getImageDataExtended() {
-        PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
-
-        for (int i = 0; i < pixels.length; i++) {
-            for (int j = 0; j < pixels.length; j++) {
-                pixels[i][j] = new Color(0.5, 0.5, 0.5, 1.0);
-            }
+    private FilterResult fetchCached(long start) {
+        if (resultCache == null || inputFile == null || !save) {
+            return null;
         }
-
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixels[i + 1][j + 1] = pr.getColor(i, j);
+        try {
+            cacheKey = ResultCache.key(ResultCache.hash(inputFile),
+                    ResultCache.describe(getFilterChain(), edgePolicy, precision, compressionLevel));
+            File output = new File(opfilename);
+            if (!resultCache.fetch(cacheKey, output)) {
+                return null;
+            }
+            try (StripReader reader = StripReader.open(output)) {
+                return new FilterResult(null, reader.getWidth(), reader.getHeight(), filterType, opfilename, true,
+                        System.nanoTime() - start);
             }
         }
-
-        return pixels;
+        catch (IOException e) {
+            return null;
+        }
     }
 
+    /**
+     * This method stores the saved output in the result cache, if it was looked up there.
+     */
+    private void storeCached() {
+        if (cacheKey == null) {
+            return;
+        }
+        try {
+            resultCache.store(cacheKey, new File(opfilename));
+        }
+        catch (IOException e) {
+            // The output itself is saved; the next run only has to filter the image again.
+        }
+    }
 
     /**
-     * This method saves the image which it was asked to filter.
-     * @param fileName the name under which the filtered image would be saved.
+     * This method frees the pixels this processor held off heap.
      */
-    private void saveImage(String fileName) {
-        WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-        PixelWriter pw = wimg.getPixelWriter();
+    private void releaseOffHeap() {
+        if (offHeapSource != null) {
+            offHeapSource.close();
+            offHeapSource = null;
+        }
+        if (offHeapOutput != null) {
+            offHeapOutput.close();
+            offHeapOutput = null;
+        }
+    }
 
-        int count = 0;
-        int sliceToGet = 0;
-        for(int i = 0; i < image.getHeight(); i++) {
-            Color[][]pixel = imageSliceProcessors.get(sliceToGet).getOutputPixel();
-            for(int j = 0; j < image.getWidth(); j++) {
-                pw.setColor(i,j,pixel[count][j]);
+    /**
+     * This method gets the pixels this processor has to filter, decoding the image file if it was given one.
+     * An image file larger than the off-heap threshold is decoded straight off heap,
+     * and a JavaFX image that large is copied off heap.
+     * @return the pixels of the image
+     */
+    private PixelBuffer loadSource() {
+        if (this.source != null) {
+            return this.source;
+        }
+        try {
+            if (this.image == null) {
+                long bytes = RasterIO.decodedBytes(inputFile);
+                if (memoryBudget != null) {
+                    memoryBudget.acquire(bytes);
+                    budgetedBytes = bytes;
+                }
+                if (bytes / 4 > offHeapThreshold) {
+                    Metrics.Sample sample = Metrics.begin();
+                    offHeapSource = RasterIO.readOffHeap(inputFile);
+                    Metrics.end(Metrics.Stage.DECODE, sample, bytes / 4);
+                    return offHeapSource;
+                }
             }
-
-            if(count == pixel.length - 1) {
-                count = 0;
-                sliceToGet ++;
+            Metrics.Sample sample = Metrics.begin();
+            Image decoded = this.image != null ? this.image : RasterIO.decode(inputFile);
+            int width = (int) decoded.getWidth();
+            int height = (int) decoded.getHeight();
+            PixelBuffer pixels;
+            if ((long) width * height > offHeapThreshold) {
+                offHeapSource = new OffHeapRaster(width, height);
+                PixelTransfer.readInto(decoded, offHeapSource);
+                pixels = offHeapSource;
             }
             else {
-                count++;
+                pixels = PixelTransfer.read(decoded, rasterPool);
             }
+            Metrics.end(Metrics.Stage.DECODE, sample, (long) width * height);
+            return pixels;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for memory");
+        }
+    }
 
+    /**
+     * This method saves the image which it was asked to filter.
+     * A failure to write the file fails the job, so it is reported through the future.
+     * @param output the filtered pixels
+     * @param fileName the name under which the filtered image would be saved.
+     */
+    private void saveImage(PixelBuffer output, String fileName) {
         File newFile = new File(fileName);
+        ImageSaveEvent event = new ImageSaveEvent();
+        event.begin();
 
         try {
-            ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-        } catch (Exception s) {
+            RasterIO.writePng(output, newFile, compressionLevel);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not save " + fileName, e);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.filename = fileName;
+            event.pixels = (long) output.getWidth() * output.getHeight();
+            event.bytes = newFile.length();
+            event.commit();
         }
     }
 }
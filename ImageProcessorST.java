@@ -1,19 +1,22 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
-import javax.imageio.ImageIO;
-import javafx.embed.swing.SwingFXUtils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
 public class ImageProcessorST {
 
 	private Image image;
 	private String opfilename;
 	private String filterType;
+	private FilterChain chain;
+	private EdgePolicy edgePolicy = EdgePolicy.CONSTANT;
+	private Precision precision = Precision.FLOAT;
+	private Luma luma = Luma.AVERAGE;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 	private boolean save;
 
 	/**
@@ -32,163 +35,155 @@ public class ImageProcessorST {
 	}
 
 	/**
-	 * Runs this image processor.
+	 * Sets the kernel this processor applies instead of the one named by its filter type.
+	 * @param kernel The kernel to apply.
 	 */
-	public void run() {
-		this.filter();
+	public void setKernel(Kernel kernel) {
+		setFilterChain(new FilterChain().convolve(kernel));
 	}
 
 	/**
-	 * This method decides whether a filter needs to be applied or not and then
-	 * calls appropriate methods to create the new, filtered pixel data.
-	 * @return 2d array of Color
+	 * Sets several filters this processor applies one after the other.
+	 * The filter type may also name a chain, such as "GREY>BLUR>EDGE".
+	 * @param chain The filters to apply.
 	 */
-	private Color[][] filterImage() {
-
-		if (filterType.equals("GREY")) {
-			return applyGreyscale();
-		}
+	public void setFilterChain(FilterChain chain) {
+		this.chain = chain;
+		this.filterType = chain.getName();
+	}
 
-		Color[][] pixels = getPixelDataExtended();
+	/**
+	 * Sets how the kernel treats pixels past the edge of the image. The default is a constant grey.
+	 * @param edgePolicy The edge policy.
+	 */
+	public void setEdgePolicy(EdgePolicy edgePolicy) {
+		this.edgePolicy = edgePolicy;
+	}
 
-		float[][] filter = createFilter(filterType);
+	/**
+	 * Sets the arithmetic the image is filtered with. The default is floating point.
+	 * @param precision The precision.
+	 */
+	public void setPrecision(Precision precision) {
+		this.precision = precision;
+	}
 
-		Color[][] filteredImage = applyFilter(pixels, filter);
+	/**
+	 * Sets how the GREY filter weighs the channels. The default is their plain average.
+	 * @param luma The weighting.
+	 */
+	public void setLuma(Luma luma) {
+		this.luma = luma;
+	}
 
-		return filteredImage;
+	/**
+	 * Sets how hard the saved PNG is compressed, trading encoding time for file size.
+	 * @param compressionLevel The deflate level, from 0 for the fastest to 9 for the smallest files, or -1 for the default.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
 	}
 
+	/**
+	 * Runs this image processor.
+	 */
+	public void run() {
+		this.filter();
+	}
 
 	/**
-	 * Applies the greyscale operation.
-	 * @return the new pixel data.
+	 * This method decides whether a filter needs to be applied or not and then
+	 * calls appropriate methods to create the new, filtered pixel data.
+	 * @return the filtered pixels, one byte per pixel for the GREY filter
 	 */
-	private Color[][] applyGreyscale() {
+	private PixelBuffer filterImage() {
 
-		Color[][] inputPixels = getPixelData();
-		Color[][] outputPixels = new Color[inputPixels.length][inputPixels.length];
+		if (chain == null) {
+			chain = FilterChain.parse(filterType, luma);
+		}
 
-		for (int i = 0; i < (inputPixels.length);i++) {
-			for (int j = 0; j < (inputPixels[0].length); j++) {
+		if (chain.getSingleGrey() != null) {
+			return applyGreyscale(chain.getSingleGrey());
+		}
 
-				double red = inputPixels[i][j].getRed();
-				double green = inputPixels[i][j].getGreen();
-				double blue = inputPixels[i][j].getBlue();
+		Raster pixels = getPixelData();
+		Kernel kernel = chain.getSingleKernel();
 
-				double newRGB = (red + green + blue) / 3;
-				newRGB = clampRGB(newRGB);
+		if (kernel == null) {
+			return applyChain(pixels);
+		}
 
+		Raster filteredImage = new Raster(pixels.getWidth(), pixels.getHeight());
 
-				Color newPixel = new Color(newRGB, newRGB, newRGB, 1.0);                
-				outputPixels[i][j] = newPixel;
-			}
+		if (precision == Precision.FIXED_POINT) {
+			FixedPointConvolution.apply(pixels, kernel, edgePolicy, 0, 0, pixels.getWidth(), pixels.getHeight(), filteredImage, 0, 0);
+		} else {
+			Convolution.apply(pixels, kernel, edgePolicy, 0, 0, pixels.getWidth(), pixels.getHeight(), filteredImage, 0, 0);
 		}
 
-		return outputPixels;
+		return filteredImage;
 	}
 
 	/**
-	 * Applies the required filter to the input pixel data.
-	 * @param pixels The input pixel data.
-	 * @param filter The filter.
-	 * @return The new, filtered pixel data.
+	 * Applies a chain of several filters. The image is run through the whole chain one tile at a time,
+	 * on this thread, so the intermediate results never cover more than a tile.
+	 * @param pixels The pixel data.
+	 * @return the filtered pixels, one byte per pixel if the chain makes the image grey.
 	 */
-	private Color[][] applyFilter(Color[][] pixels, float[][] filter) {
-
-		Color[][] finalImage = new Color[pixels.length - 2][pixels[0].length - 2];
-
-		for (int i = 1; i < pixels.length -1; i++) {
-			for (int j = 1; j < pixels[i].length -1; j++) {
+	private PixelBuffer applyChain(Raster pixels) {
+
+		int width = pixels.getWidth();
+		int height = pixels.getHeight();
+		PixelBuffer output = chain.producesGrey() ? new GreyRaster(width, height) : new Raster(width, height);
+		TileShape tiles = TileEngine.tileShape(width, height, 1);
+
+		for (int y = 0; y < height; y += tiles.getHeight()) {
+			for (int x = 0; x < width; x += tiles.getWidth()) {
+				// A region of a single tile filters itself on the calling thread.
+				new ImageSliceProcessor(pixels, output, chain, edgePolicy, precision, x, y,
+						Math.min(tiles.getWidth(), width - x), Math.min(tiles.getHeight(), height - y),
+						tiles, new AtomicBoolean()).invoke();
+			}
+		}
 
-				double red = 0.0;
-				double green = 0.0;
-				double blue = 0.0;
+		return output;
+	}
 
-				for (int k = -1; k < filter.length - 1; k++) {
-					for (int l = -1; l < filter[0].length - 1; l++) {
-						red += pixels[i + k][j + l].getRed() * filter[1 + k][1 + l];
-						green += pixels[i + k][j + l].getGreen() * filter[1 + k][1 + l];
-						blue += pixels[i + k][j + l].getBlue() * filter[1 + k][1 + l];
-					}
-				}
+	/**
+	 * Applies the greyscale operation.
+	 * @param luma How the channels are weighed.
+	 * @return the grey levels, one byte per pixel.
+	 */
+	private GreyRaster applyGreyscale(Luma luma) {
 
-				red = clampRGB(red);
-				green = clampRGB(green);
-				blue = clampRGB(blue);
-				finalImage[i - 1][j - 1] = new Color(red,green,blue,1.0);
-			}
-		}
-		
-		return finalImage;
+		Raster inputPixels = getPixelData();
+		GreyRaster outputPixels = new GreyRaster(inputPixels.getWidth(), inputPixels.getHeight());
+		Greyscale.apply(inputPixels, luma, precision, 0, 0, inputPixels.getWidth(), inputPixels.getHeight(), outputPixels, 0, 0);
+		return outputPixels;
 	}
 
 	private void filter() {
 
-		Color[][] pixels = filterImage();
+		PixelBuffer pixels = filterImage();
 		if (save) {
 			saveNewImage(pixels, opfilename);
 		}
 	}
 
-	/**
-	 * Creates the filter.
-	 * @param filterType The type of filter required.
-	 * @return The filter.
-	 */
-	private float[][] createFilter(String filterType) {
-		filterType = filterType.toUpperCase();
-		
-		if (filterType.equals("IDENTITY")) {
-			return (new float[][] {{0,0,0},{0,1,0},{0,0,0}});
-		} else if (filterType.equals("BLUR")) {
-			return (new float[][] {{0.0625f,0.125f,0.0625f},{0.125f,0.25f,0.125f},{0.0625f,0.125f,0.0625f}});
-		} else if (filterType.equals("SHARPEN")) {
-			return (new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
-		} else if (filterType.equals("EDGE")) {
-			return (new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
-		} else if (filterType.equals("EMBOSS")) {
-			return (new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
-		}
-		return null;
-	}
-
 	/**
 	 * Saves the pixel data in the parameter as a new image file.
 	 * @param pixels The pixel data.
 	 * @param filename The output filename.
+	 * @throws UncheckedIOException if the file could not be written.
 	 */
-	private void saveNewImage(Color[][] pixels, String filename) {
-
-		WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-
-		PixelWriter pw = wimg.getPixelWriter();
-		for (int i = 0; i < wimg.getHeight(); i++) {
-			for (int j = 0; j < wimg.getWidth(); j++) {
-				pw.setColor(i, j, pixels[i][j]);
-			}
-		}
+	private void saveNewImage(PixelBuffer pixels, String filename) {
 
 		File newFile = new File(filename);
 
 		try {
-			ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-		} catch (Exception s) {
-		}
-	}
-
-	/**
-	 * This method ensures that the computations on color values have not 
-	 * strayed outside of the range [0,1].
-	 * @param RGBValue the value to clamp.
-	 * @return The clamped value.
-	 */
-	protected static double clampRGB(double RGBValue) {
-		if (RGBValue < 0.0) {
-			return 0.0;
-		} else if (RGBValue > 1.0) {
-			return 1.0;
-		} else {
-			return RGBValue;
+			RasterIO.writePng(pixels, newFile, compressionLevel);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not save " + filename, e);
 		}
 	}
 
@@ -197,38 +192,7 @@ public class ImageProcessorST {
 	 * NOT add a border.
 	 * @return The pixel data.
 	 */
-	private Color[][] getPixelData() {
-		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth()][(int) image.getHeight()];
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i][j] = pr.getColor(i, j);
-			}
-		}
-
-		return pixels;
-	}
-
-	/**
-	 * Gets the pixel data from the image but with a one-pixel border added.
-	 * @return The pixel data.
-	 */
-	private Color[][] getPixelDataExtended() {
-		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
-
-		for (int i = 0; i < pixels.length; i++) {
-			for (int j = 0; j < pixels.length; j++) {
-				pixels[i][j] = new Color(0.5, 0.5, 0.5, 1.0);
-			}
-		}
-
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i + 1][j + 1] = pr.getColor(i, j);
-			}
-		}
-
-		return pixels;
+	private Raster getPixelData() {
+		return PixelTransfer.read(image);
 	}
 }
@@ -0,0 +1,289 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+/**
+ * Filters an image file into a PNG file a horizontal strip at a time, for images larger than memory.
+ * The source is read from top to bottom by a {@link StripReader}, and each strip keeps only its own rows
+ * and the rows of the kernel halo above and below it. The strip is filtered on the tile engine and
+ * its rows are handed to a {@link PngEncoder} straight away, so the memory used grows with the width
+ * of the image and the strip height, but not with the height of the image.
+ */
+public class ImageProcessorStreaming {
+    /**
+     * The number of pixels a strip holds when no strip height is set.
+     */
+    public static final long DEFAULT_STRIP_PIXELS = 4L * 1024 * 1024;
+
+    private File inputFile;
+    private File outputFile;
+    private String filterType;
+    private FilterChain chain;
+    private EdgePolicy edgePolicy = EdgePolicy.CONSTANT;
+    private Precision precision = Precision.FLOAT;
+    private Luma luma = Luma.AVERAGE;
+    private int stripHeight;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Constructor to create a streaming image processor.
+     * @param inputFile the image file it has to filter
+     * @param filter the type of filter it needs to apply
+     * @param outputFile the PNG file the filtered image is written to
+     */
+    public ImageProcessorStreaming(File inputFile, String filter, File outputFile) {
+        this.inputFile = inputFile;
+        this.filterType = filter;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * This method sets the kernel this processor applies instead of the one named by its filter type.
+     * @param kernel the kernel to apply
+     */
+    public void setKernel(Kernel kernel) {
+        setFilterChain(new FilterChain().convolve(kernel));
+    }
+
+    /**
+     * This method sets several filters this processor applies one after the other, in a single pass.
+     * The halo of a strip is then the sum of the halos of the kernels.
+     * @param chain the filters to apply
+     */
+    public void setFilterChain(FilterChain chain) {
+        this.chain = chain;
+        this.filterType = chain.getName();
+    }
+
+    /**
+     * This method sets how the kernel treats pixels past the edge of the image. The default is a constant grey.
+     * With {@link EdgePolicy#WRAP} the last rows of the image are needed before the first strip,
+     * so the file is read through once more to find them.
+     * @param edgePolicy the edge policy
+     */
+    public void setEdgePolicy(EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    /**
+     * This method sets the arithmetic the image is filtered with. The default is floating point.
+     * @param precision the precision
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * This method sets how the GREY filter weighs the channels. The default is their plain average.
+     * @param luma the weighting
+     */
+    public void setLuma(Luma luma) {
+        this.luma = luma;
+    }
+
+    /**
+     * This method sets the number of output rows in each strip.
+     * @param stripHeight the number of rows, or 0 to hold about {@link #DEFAULT_STRIP_PIXELS} pixels
+     */
+    public void setStripHeight(int stripHeight) {
+        this.stripHeight = stripHeight;
+    }
+
+    /**
+     * This method sets how hard the output PNG is compressed.
+     * @param compressionLevel the deflate level, from 0 to 9, or -1 for the default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Runs this image processor.
+     * @throws IOException if the input could not be read or the output could not be written
+     */
+    public void run() throws IOException {
+        if (chain == null) {
+            chain = FilterChain.parse(filterType, luma);
+        }
+        int radius = chain.getRadius();
+        // A chain of several steps fills in the edges of its intermediate results itself, so it is given only
+        // the rows inside the image. Under WRAP the rows past the edge are the ones it would fill in anyway.
+        boolean ownEdges = chain.getSingleKernel() == null && chain.getSingleGrey() == null
+                && edgePolicy != EdgePolicy.WRAP;
+
+        try (StripReader reader = StripReader.open(inputFile);
+             PngEncoder encoder = new PngEncoder(new BufferedOutputStream(replace(outputFile)),
+                     reader.getWidth(), reader.getHeight(), compressionLevel, chain.producesGrey())) {
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            int rowsPerStrip = stripHeight > 0 ? stripHeight
+                    : (int) Math.max(1, Math.min(height, DEFAULT_STRIP_PIXELS / width));
+            int haloRows = Math.min(radius, height);
+
+            int[] head = null;
+            int[] tail = null;
+            if (edgePolicy == EdgePolicy.WRAP && radius > 0) {
+                head = new int[width * haloRows];
+                tail = readTail(rowsPerStrip, haloRows);
+            }
+
+            Raster window = new Raster(width, rowsPerStrip + 2 * radius);
+            // Grey output is filtered to one byte per pixel and written as a greyscale PNG.
+            PixelBuffer output = chain.producesGrey() ? new GreyRaster(width, window.getHeight())
+                    : new Raster(width, window.getHeight());
+            int[] pixels = window.getPixels();
+            int windowFirst = 0;
+            int windowRows = 0;
+            int minimumTiles = Runtime.getRuntime().availableProcessors();
+
+            for (int y = 0; y < height; y += rowsPerStrip) {
+                int rows = Math.min(rowsPerStrip, height - y);
+                int first = y - radius;
+                int count = rows + 2 * radius;
+
+                // The rows shared with the previous strip are moved up instead of being read again.
+                int kept = windowFirst + windowRows - first;
+                if (windowRows > 0 && kept > 0) {
+                    System.arraycopy(pixels, (first - windowFirst) * width, pixels, 0, kept * width);
+                }
+                int readEnd = Math.min(height, first + count);
+                int nextRow = reader.getNextRow();
+                if (readEnd > nextRow) {
+                    Metrics.Sample sample = Metrics.begin();
+                    reader.readRows(readEnd - nextRow, pixels, (nextRow - first) * width);
+                    Metrics.end(Metrics.Stage.DECODE, sample, (long) (readEnd - nextRow) * width);
+                }
+                if (head != null && y == 0) {
+                    System.arraycopy(pixels, radius * width, head, 0, head.length);
+                }
+                for (int row = first; row < first + count; row++) {
+                    if (row < 0 || row >= height) {
+                        fillEdgeRow(row, height, pixels, (row - first) * width, width, first, readEnd, head, tail);
+                    }
+                }
+                windowFirst = first;
+                windowRows = count;
+
+                PixelSource source = window;
+                int sourceFirst = first;
+                if (ownEdges) {
+                    sourceFirst = Math.max(0, first);
+                    source = new WindowRows(window, sourceFirst - first, readEnd - sourceFirst);
+                }
+                int top = y - sourceFirst;
+                TileShape tiles = TileEngine.tileShape(width, rows, minimumTiles);
+                ImageSliceProcessor root = new ImageSliceProcessor(source, output, chain, edgePolicy, precision,
+                        0, top, width, rows, tiles, new AtomicBoolean());
+                TileEngine.getPool().invoke(root);
+
+                Metrics.Sample sample = Metrics.begin();
+                if (output instanceof GreyRaster) {
+                    encoder.writeRows(((GreyRaster) output).getPixels(), top * width, rows);
+                }
+                else {
+                    encoder.writeRows(((Raster) output).getPixels(), top * width, rows);
+                }
+                Metrics.end(Metrics.Stage.ENCODE, sample, (long) rows * width);
+            }
+            encoder.finish();
+        }
+        Metrics.imageProcessed();
+    }
+
+    /**
+     * This method fills a row of the window which lies outside of the image, as the edge policy says.
+     * Rows mirrored or repeated from inside the image are copied from the window, or for
+     * {@link EdgePolicy#WRAP} from the first or last rows of the image.
+     */
+    private void fillEdgeRow(int row, int height, int[] pixels, int offset, int width,
+                             int windowFirst, int windowEnd, int[] head, int[] tail) {
+        int sourceRow = edgePolicy.index(row, height);
+        if (sourceRow < 0) {
+            Arrays.fill(pixels, offset, offset + width, Raster.BORDER_GREY);
+        }
+        else if (sourceRow >= windowFirst && sourceRow < windowEnd) {
+            System.arraycopy(pixels, (sourceRow - windowFirst) * width, pixels, offset, width);
+        }
+        else if (head != null && sourceRow < head.length / width) {
+            System.arraycopy(head, sourceRow * width, pixels, offset, width);
+        }
+        else {
+            int tailRows = tail.length / width;
+            System.arraycopy(tail, (sourceRow - (height - tailRows)) * width, pixels, offset, width);
+        }
+    }
+
+    /**
+     * This method reads through the whole image once and keeps only its last rows.
+     * @param rowsPerStrip the number of rows read at a time
+     * @param rows the number of rows to keep
+     * @return the last rows of the image
+     * @throws IOException if the image could not be read
+     */
+    private int[] readTail(int rowsPerStrip, int rows) throws IOException {
+        try (StripReader reader = StripReader.open(inputFile)) {
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            int[] strip = new int[width * Math.max(rowsPerStrip, rows)];
+            int[] tail = new int[width * rows];
+            int stripRows = strip.length / width;
+            for (int y = 0; y < height; y += stripRows) {
+                int count = Math.min(stripRows, height - y);
+                reader.readRows(count, strip, 0);
+                // Rows in the last strips of the image are the ones kept.
+                for (int row = Math.max(y, height - rows); row < y + count; row++) {
+                    System.arraycopy(strip, (row - y) * width, tail, (row - (height - rows)) * width, width);
+                }
+            }
+            return tail;
+        }
+    }
+
+    /**
+     * This method opens a file for writing in place of any file already there, so a hard link to the old file,
+     * such as one into a {@link ResultCache}, keeps what it held.
+     */
+    private static OutputStream replace(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        return new FileOutputStream(file);
+    }
+
+    /**
+     * The rows of the window which lie inside the image, seen as an image of their own,
+     * so the top and bottom of the image are the edges a chain fills in.
+     */
+    private static class WindowRows implements PixelSource {
+        private final Raster window;
+        private final int firstRow;
+        private final int height;
+
+        WindowRows(Raster window, int firstRow, int height) {
+            this.window = window;
+            this.firstRow = firstRow;
+            this.height = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return window.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readRow(int x, int y, int[] dest, int destOffset, int length) {
+            window.readRow(x, firstRow + y, dest, destOffset, length);
+        }
+    }
+}
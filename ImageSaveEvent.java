@@ -0,0 +1,26 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event covering an {@link ImageProcessorMT} writing its output file.
+ */
+@Name("com.kcl.osc.imageprocessor.ImageSave")
+@Label("Image Save")
+@Category({"Image Processor", "Jobs"})
+@Description("The filtered image being encoded and written to disk")
+class ImageSaveEvent extends jdk.jfr.Event {
+    @Label("Output File")
+    String filename;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("File Size")
+    @DataAmount
+    long bytes;
+}
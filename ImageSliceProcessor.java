@@ -1,215 +1,222 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import javafx.scene.paint.Color;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A rectangular region of an image, run as a task on the {@link TileEngine} pool.
+ * A region covering more than one tile splits itself in two along a tile boundary,
+ * across whichever direction holds more tiles, so idle workers can steal the halves
+ * and a very wide or very tall image is still cut evenly. Only single tiles filter pixels.
+ * Every tile writes straight into the output of the whole image,
+ * so there is nothing to put back together once the tiles have finished.
+ * When the image is held off heap, each tile copies the pixels it reads, halo included,
+ * into a small raster and filters that; when the output is, the tile is filtered into a small
+ * raster and copied back. The GREY filter writes one byte per pixel when the output is a {@link GreyRaster}.
+ * A {@link FilterChain} of several steps always copies each tile with the halo of the whole chain into
+ * a small raster, and runs every step of the chain on it before moving on to the next tile.
+ */
+public class ImageSliceProcessor extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private FilterChain chain;
+    private Kernel kernel;
+    private EdgePolicy edge;
+    private Precision precision;
+    private Luma luma;
+    private PixelBuffer output;
+    private PixelSource pixels;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private TileShape tileShape;
+    private AtomicBoolean cancelled;
 
-public class ImageSliceProcessor implements Runnable {
-    private Image image;
-    private String filterType;
-    private Thread thread;
-    private Color[][] outputPixel;
-    private int sliceSize;
-    private int rowToSliceFrom;
-    private Color[][] pixels;
-
-    public ImageSliceProcessor(Image image, String filter, int sliceSize, int rowToSliceFrom) {
-        this.image = image;
-        this.filterType = filter;
-        this.sliceSize = sliceSize;
-        this.rowToSliceFrom = rowToSliceFrom;
-    }
-
-    public ImageSliceProcessor(Color[][]pixels, String filter, int sliceSize, int rowToSliceFrom) {
+    /**
+     * Constructor to create a slice processor.
+     * All of the tiles of an image share its pixels and only read them; where the kernel
+     * reaches past the edge of the image the edge policy decides what it reads.
+     * @param pixels the pixels of the whole image
+     * @param output the output of the whole image; the slice only writes to its own region
+     * @param chain the filters it needs to apply; a single kernel or GREY is applied without a window per tile
+     * @param edge how pixels outside of the image are read
+     * @param precision the arithmetic the tile is filtered with
+     * @param x the left edge of the region
+     * @param y the top edge of the region
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param tileShape the size of the tiles the region is cut into
+     * @param cancelled the flag of the image processor; once it is set, tiles which have not started are skipped
+     */
+    public ImageSliceProcessor(PixelSource pixels, PixelBuffer output, FilterChain chain, EdgePolicy edge, Precision precision,
+                               int x, int y, int width, int height, TileShape tileShape, AtomicBoolean cancelled) {
         this.pixels = pixels;
-        this.filterType = filter;
-        this.sliceSize = sliceSize;
-        this.rowToSliceFrom = rowToSliceFrom;
-    }
-
-    public void start() {
-        thread = new Thread(this);
-        thread.start();
-    }
-
-    public void run() {
-        this.filter();
+        this.output = output;
+        this.chain = chain;
+        this.kernel = chain.getSingleKernel();
+        this.luma = chain.getSingleGrey();
+        this.edge = edge;
+        this.precision = precision;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.tileShape = tileShape;
+        this.cancelled = cancelled;
     }
 
-    public void setOutputPixel(Color[][] output) {
-        this.outputPixel = output;
-    }
-
-
-    public Color[][] getOutputPixel() {
-        return outputPixel;
-    }
-
-    private Color[][] filterImage() {
-
-        if (filterType.equals("GREY")) {
-            return applyGreyscale();
-        }
-
-        Color[][] pixels = getPixelDataExtended();
-
-        float[][] filter = createFilter(filterType);
-
-        Color[][] filteredImage = applyFilter(pixels, filter);
-
-        setOutputPixel(filteredImage);
-
-        return filteredImage;
-    }
-
-
     /**
-     * Applies the greyscale operation.
-     * @return the new pixel data.
+     * Filters this region if it is a single tile, or splits it in two
+     * and filters both halves in parallel.
      */
-    private Color[][] applyGreyscale() {
-        Color[][] pixel = getPixelData();
-        Color[][] outputPixels = new Color[pixel.length][pixel[0].length];
-        for (int i = 0; i < (pixel.length);i++) {
-            for (int j = 0; j < (pixel[0].length); j++) {
-
-                double red = pixel[i][j].getRed();
-                double green = pixel[i][j].getGreen();
-                double blue = pixel[i][j].getBlue();
-
-                double newRGB = (red + green + blue) / 3;
-                newRGB = clampRGB(newRGB);
-
-                Color newPixel = new Color(newRGB, newRGB, newRGB, 1.0);
-                outputPixels[i][j] = newPixel;
-            }
+    @Override
+    protected void compute() {
+        if (cancelled.get()) {
+            return;
         }
-
-        return outputPixels;
-    }
-
-    public void join() {
-        try {
-            thread.join();
+        int columns = (width + tileShape.getWidth() - 1) / tileShape.getWidth();
+        int rows = (height + tileShape.getHeight() - 1) / tileShape.getHeight();
+        if (columns >= rows && columns > 1) {
+            int leftWidth = (columns / 2) * tileShape.getWidth();
+            invokeAll(split(x, y, leftWidth, height), split(x + leftWidth, y, width - leftWidth, height));
         }
-        catch (Exception e) {
-            System.out.println(e);
+        else if (rows > 1) {
+            int topHeight = (rows / 2) * tileShape.getHeight();
+            invokeAll(split(x, y, width, topHeight), split(x, y + topHeight, width, height - topHeight));
+        }
+        else {
+            this.filter();
         }
     }
 
-    /**
-     * Applies the required filter to the input pixel data.
-     * @param pixels The input pixel data.
-     * @param filter The filter.
-     * @return The new, filtered pixel data.
-     */
-    private Color[][] applyFilter(Color[][] pixels, float[][] filter) {
-
-        Color[][] finalImage = new Color[pixels.length - 2][pixels[0].length - 2];
-
-        for (int i = 1; i <= finalImage.length; i++) {
-            for (int j = 1; j <= finalImage[0].length; j++) {
-
-                double red = 0.0;
-                double green = 0.0;
-                double blue = 0.0;
+    private ImageSliceProcessor split(int x, int y, int width, int height) {
+        return new ImageSliceProcessor(pixels, output, chain, edge, precision, x, y, width, height, tileShape, cancelled);
+    }
 
-                for (int k = -1; k < filter.length - 1; k++) {
-                    for (int l = -1; l < filter[0].length - 1; l++) {
+    private void filterImage() {
+        if (kernel == null && luma == null) {
+            filterChain();
+            return;
+        }
 
-                        red += pixels[i + k][j + l].getRed() * filter[1 + k][1 + l];
-                        green += pixels[i + k][j + l].getGreen() * filter[1 + k][1 + l];
-                        blue += pixels[i + k][j + l].getBlue() * filter[1 + k][1 + l];
-                    }
-                }
+        Raster source;
+        int sourceX;
+        int sourceY;
+        if (pixels instanceof Raster) {
+            source = (Raster) pixels;
+            sourceX = x;
+            sourceY = y;
+        }
+        else {
+            int radius = kernel == null ? 0 : kernel.getRadius();
+            source = stage(x - radius, y - radius, width + 2 * radius, height + 2 * radius);
+            sourceX = radius;
+            sourceY = radius;
+        }
 
-                red = clampRGB(red);
-                green = clampRGB(green);
-                blue = clampRGB(blue);
-                finalImage[i - 1][j - 1] = new Color(red,green,blue,1.0);
+        if (luma != null && output instanceof GreyRaster) {
+            Greyscale.apply(source, luma, precision, sourceX, sourceY, width, height, (GreyRaster) output, x, y);
+        }
+        else if (output instanceof Raster) {
+            filterRegion(source, sourceX, sourceY, (Raster) output, x, y);
+        }
+        else {
+            Raster tile = new Raster(width, height);
+            filterRegion(source, sourceX, sourceY, tile, 0, 0);
+            for (int row = 0; row < height; row++) {
+                output.writeRow(x, y + row, tile.getPixels(), row * width, width);
             }
         }
-
-        return finalImage;
-    }
-
-    private void filter() {
-        Color[][] pixels = filterImage();
-        this.setOutputPixel(pixels);
     }
 
     /**
-     * Creates the filter.
-     * @param filterType The type of filter required.
-     * @return The filter.
+     * This method runs a chain of several filters on this tile. The tile is read once with the halo
+     * of the whole chain, and the chain works on that window alone.
      */
-    private float[][] createFilter(String filterType) {
-        filterType = filterType.toUpperCase();
-
-        if (filterType.equals("IDENTITY")) {
-            return (new float[][] {{0,0,0},{0,1,0},{0,0,0}});
-        } else if (filterType.equals("BLUR")) {
-            return (new float[][] {{0.0625f,0.125f,0.0625f},{0.125f,0.25f,0.125f},{0.0625f,0.125f,0.0625f}});
-        } else if (filterType.equals("SHARPEN")) {
-            return (new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
-        } else if (filterType.equals("EDGE")) {
-            return (new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
-        } else if (filterType.equals("EMBOSS")) {
-            return (new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
-        }
-        return null;
+    private void filterChain() {
+        int radius = chain.getRadius();
+        Raster window = stage(x - radius, y - radius, width + 2 * radius, height + 2 * radius);
+        if (output instanceof Raster) {
+            chain.apply(window, x - radius, y - radius, pixels.getWidth(), pixels.getHeight(), edge, precision,
+                    (Raster) output, x, y);
+            return;
+        }
+        Raster tile = new Raster(width, height);
+        chain.apply(window, x - radius, y - radius, pixels.getWidth(), pixels.getHeight(), edge, precision, tile, 0, 0);
+        for (int row = 0; row < height; row++) {
+            output.writeRow(x, y + row, tile.getPixels(), row * width, width);
+        }
     }
 
     /**
-     * This method ensures that the computations on color values have not
-     * strayed outside of the range [0,1].
-     * @param RGBValue the value to clamp.
-     * @return The clamped value.
+     * This method filters the pixels of this tile, read from the given position of the source.
      */
-    protected static double clampRGB(double RGBValue) {
-        if (RGBValue < 0.0) {
-            return 0.0;
-        } else if (RGBValue > 1.0) {
-            return 1.0;
-        } else {
-            return RGBValue;
+    private void filterRegion(Raster source, int sourceX, int sourceY, Raster dest, int destX, int destY) {
+        if (luma != null) {
+            Greyscale.apply(source, luma, precision, sourceX, sourceY, width, height, dest, destX, destY);
+        }
+        else if (precision == Precision.FIXED_POINT) {
+            FixedPointConvolution.apply(source, kernel, edge, sourceX, sourceY, width, height, dest, destX, destY);
+        }
+        else {
+            Convolution.apply(source, kernel, edge, sourceX, sourceY, width, height, dest, destX, destY);
         }
     }
 
     /**
-     * Gets the pixel data from the image but does
-     * NOT add a border.
-     * @return The pixel data.
+     * This method copies a region of the image into a new raster. The parts of the region
+     * outside of the image are filled in by the edge policy, so the copy can be filtered on its own.
+     * @return the copy of the region
      */
-    private Color[][] getPixelData() {
-        PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[this.sliceSize][(int) image.getHeight()];
-        for(int i = 0; i < sliceSize;i++) {
-            for(int j = 0; j < image.getHeight(); j++) {
-                pixels[i][j] = pr.getColor(rowToSliceFrom, j);
+    private Raster stage(int left, int top, int regionWidth, int regionHeight) {
+        Raster window = new Raster(regionWidth, regionHeight);
+        int[] copy = window.getPixels();
+        int first = Math.max(left, 0);
+        int last = Math.min(left + regionWidth, pixels.getWidth());
+        int[] pixel = new int[1];
+        for (int row = 0; row < regionHeight; row++) {
+            int rowStart = row * regionWidth;
+            int sourceRow = edge.index(top + row, pixels.getHeight());
+            if (sourceRow < 0) {
+                Arrays.fill(copy, rowStart, rowStart + regionWidth, Raster.BORDER_GREY);
+                continue;
+            }
+            pixels.readRow(first, sourceRow, copy, rowStart + first - left, last - first);
+            for (int i = 0; i < regionWidth; i++) {
+                if (left + i >= first && left + i < last) {
+                    continue;
+                }
+                int column = edge.index(left + i, pixels.getWidth());
+                if (column < 0) {
+                    copy[rowStart + i] = Raster.BORDER_GREY;
+                }
+                else {
+                    pixels.readRow(column, sourceRow, pixel, 0, 1);
+                    copy[rowStart + i] = pixel[0];
+                }
             }
-            rowToSliceFrom++;
         }
-        return pixels;
+        return window;
     }
 
-    /**
-     * Gets the pixel data from the image but with a one-pixel border added.
-     * @return The pixel data.
-     */
-    private Color[][] getPixelDataExtended() {
-
-        Color[][] pixelData = new Color[this.sliceSize + 2][this.pixels[0].length];
-
-        int sizeToUse = sliceSize + 2;
-
-        for(int i = 0; i < sizeToUse; i++) {
-            for(int j = 0; j < pixels[0].length; j++) {
-                pixelData[i][j] = pixels[rowToSliceFrom][j];
-            }
-            rowToSliceFrom++;
+    private void filter() {
+        SliceEvent event = new SliceEvent();
+        event.begin();
+        Metrics.Sample sample = Metrics.begin();
+        filterImage();
+        long tilePixels = (long) width * height;
+        Metrics.end(Metrics.Stage.FILTER, sample, tilePixels);
+        event.end();
+        if (event.shouldCommit()) {
+            event.filter = chain.getName();
+            event.firstColumn = x;
+            event.firstRow = y;
+            event.columns = width;
+            event.rows = height;
+            event.pixels = tilePixels;
+            event.commit();
         }
-
-        return pixelData;
     }
 }
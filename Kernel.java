@@ -0,0 +1,239 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * A square convolution kernel of any odd size.
+ * The weights are stored row by row, so getWeight(x, y) is the weight of the pixel
+ * x columns and y rows away from the top left corner of the window, and the anchor is the centre.
+ * A kernel which is the outer product of two vectors keeps them, so it can be applied in two passes.
+ */
+public class Kernel {
+    private final String name;
+    private final int size;
+    private final int anchor;
+    private final float[] weights;
+    private final float[] alongX;
+    private final float[] alongY;
+
+    /**
+     * Constructor to create a kernel from its weights.
+     * The kernel is checked for separability, so a separable kernel gets the fast path
+     * even when it was not declared as one.
+     * @param name the name of the kernel, used as its filter type
+     * @param weights the weights, indexed as weights[y][x]
+     */
+    public Kernel(String name, float[][] weights) {
+        this(name, flatten(weights), weights.length, null, null);
+    }
+
+    private Kernel(String name, float[] weights, int size, float[] alongX, float[] alongY) {
+        if (size % 2 == 0 || weights.length != size * size) {
+            throw new IllegalArgumentException("A kernel must be square with an odd size, got " + size);
+        }
+        this.name = name;
+        this.size = size;
+        this.anchor = size / 2;
+        this.weights = weights;
+        if (alongX == null) {
+            float[][] separated = Convolution.separate(toFilter());
+            if (separated != null) {
+                alongX = separated[0];
+                alongY = separated[1];
+            }
+        }
+        this.alongX = alongX;
+        this.alongY = alongY;
+    }
+
+    /**
+     * This method creates a kernel declared as separable, the outer product of two vectors.
+     * @param name the name of the kernel
+     * @param alongX the weights of the horizontal pass
+     * @param alongY the weights of the vertical pass
+     * @return the kernel
+     */
+    public static Kernel separable(String name, float[] alongX, float[] alongY) {
+        if (alongX.length != alongY.length) {
+            throw new IllegalArgumentException("Both passes of a separable kernel must have the same length");
+        }
+        int size = alongX.length;
+        float[] weights = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                weights[y * size + x] = alongX[x] * alongY[y];
+            }
+        }
+        return new Kernel(name, weights, size, alongX.clone(), alongY.clone());
+    }
+
+    /**
+     * Creates the kernel for one of the named filters.
+     * @param filterType The type of filter required: IDENTITY, BLUR, SHARPEN, EDGE or EMBOSS.
+     * @return The kernel.
+     */
+    public static Kernel named(String filterType) {
+        filterType = filterType.toUpperCase();
+
+        if (filterType.equals("IDENTITY")) {
+            return new Kernel(filterType, new float[][] {{0,0,0},{0,1,0},{0,0,0}});
+        } else if (filterType.equals("BLUR")) {
+            return separable(filterType, new float[] {0.25f,0.5f,0.25f}, new float[] {0.25f,0.5f,0.25f});
+        } else if (filterType.equals("SHARPEN")) {
+            return new Kernel(filterType, new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
+        } else if (filterType.equals("EDGE")) {
+            return new Kernel(filterType, new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
+        } else if (filterType.equals("EMBOSS")) {
+            return new Kernel(filterType, new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
+        }
+        throw new IllegalArgumentException("Unknown filter type: " + filterType);
+    }
+
+    /**
+     * This method creates a normalised Gaussian blur kernel. It is declared as separable.
+     * @param radius the number of pixels the kernel reaches on each side of the centre
+     * @param sigma the standard deviation of the Gaussian, in pixels
+     * @return a kernel of size 2 * radius + 1
+     */
+    public static Kernel gaussian(int radius, double sigma) {
+        float[] vector = gaussianVector(radius, sigma);
+        return separable("GAUSSIAN_" + (2 * radius + 1), vector, vector);
+    }
+
+    /**
+     * This method creates an unsharp mask, which sharpens by subtracting a Gaussian blur of the image.
+     * @param radius the radius of the blur
+     * @param sigma the standard deviation of the blur, in pixels
+     * @param amount how strongly the image is sharpened, 1.0 doubles the detail
+     * @return a kernel of size 2 * radius + 1
+     */
+    public static Kernel unsharpMask(int radius, double sigma, double amount) {
+        float[] vector = gaussianVector(radius, sigma);
+        int size = vector.length;
+        float[] weights = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                weights[y * size + x] = (float) (-amount * vector[x] * vector[y]);
+            }
+        }
+        weights[radius * size + radius] += (float) (1.0 + amount);
+        return new Kernel("UNSHARP_" + size, weights, size, null, null);
+    }
+
+    /**
+     * This method gives a copy of this kernel scaled so its weights add up to one.
+     * A kernel whose weights add up to zero, such as EDGE, is returned unchanged.
+     * @return the normalised kernel
+     */
+    public Kernel normalize() {
+        double sum = 0;
+        for (float weight : weights) {
+            sum += weight;
+        }
+        if (sum == 0 || sum == 1) {
+            return this;
+        }
+        float[] scaled = new float[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            scaled[i] = (float) (weights[i] / sum);
+        }
+        if (isSeparable()) {
+            // Scaling one of the passes scales their product.
+            float[] scaledX = new float[size];
+            for (int i = 0; i < size; i++) {
+                scaledX[i] = (float) (alongX[i] / sum);
+            }
+            return new Kernel(name, scaled, size, scaledX, alongY.clone());
+        }
+        return new Kernel(name, scaled, size, null, null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the position of the centre of the kernel, in both directions.
+     */
+    public int getAnchor() {
+        return anchor;
+    }
+
+    /**
+     * @return the number of pixels the kernel reaches past the edge of the image on every side.
+     */
+    public int getRadius() {
+        return anchor;
+    }
+
+    public float getWeight(int x, int y) {
+        return weights[y * size + x];
+    }
+
+    /**
+     * @return the weights, row by row. The array must not be modified.
+     */
+    public float[] getWeights() {
+        return weights;
+    }
+
+    public boolean isSeparable() {
+        return alongX != null;
+    }
+
+    /**
+     * @return the weights of the horizontal pass, or null if the kernel is not separable.
+     */
+    public float[] getAlongX() {
+        return alongX;
+    }
+
+    /**
+     * @return the weights of the vertical pass, or null if the kernel is not separable.
+     */
+    public float[] getAlongY() {
+        return alongY;
+    }
+
+    /**
+     * This method gives the weights as a filter indexed as filter[x][y].
+     * @return the filter
+     */
+    public float[][] toFilter() {
+        float[][] filter = new float[size][size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                filter[x][y] = weights[y * size + x];
+            }
+        }
+        return filter;
+    }
+
+    private static float[] flatten(float[][] weights) {
+        int size = weights.length;
+        float[] flat = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            if (weights[y].length != size) {
+                throw new IllegalArgumentException("A kernel must be square");
+            }
+            System.arraycopy(weights[y], 0, flat, y * size, size);
+        }
+        return flat;
+    }
+
+    private static float[] gaussianVector(int radius, double sigma) {
+        float[] vector = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / (2 * sigma * sigma));
+            vector[i + radius] = (float) value;
+            sum += value;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) (vector[i] / sum);
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,98 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations.
+ * Bucket i counts the durations up to 2^i microseconds, which covers one microsecond
+ * to about half an hour in 32 buckets with at most a factor of two of error.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 32;
+    private static final long FIRST_BOUND_NANOS = 1000;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * This method adds a duration to the histogram.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * This method estimates a percentile as the upper bound of the bucket it falls into.
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated duration in nanoseconds
+     */
+    public long percentileNanos(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * This method describes the histogram as a JSON object, with all durations in milliseconds.
+     * Only the buckets that have counts are listed.
+     * @return the JSON text
+     */
+    public String toJson() {
+        long total = getCount();
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT,
+                "{\"count\":%d,\"totalMs\":%.3f,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f,\"buckets\":[",
+                total, getTotalNanos() / 1e6, total == 0 ? 0.0 : getTotalNanos() / 1e6 / total,
+                percentileNanos(50) / 1e6, percentileNanos(99) / 1e6, maxNanos.get() / 1e6));
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = buckets.get(i);
+            if (bucketCount == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "{\"leMs\":%.3f,\"count\":%d}", upperBound(i) / 1e6, bucketCount));
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    private static int bucketOf(long nanos) {
+        long units = Math.max(1, (nanos + FIRST_BOUND_NANOS - 1) / FIRST_BOUND_NANOS);
+        int bucket = 64 - Long.numberOfLeadingZeros(units - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return FIRST_BOUND_NANOS << bucket;
+    }
+}
@@ -0,0 +1,36 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * How the GREY filter weighs the three channels of a pixel to find its grey level.
+ * The weights of every option add up to one, so white stays white.
+ */
+public enum Luma {
+    /** The plain mean of the three channels, the original GREY filter. */
+    AVERAGE(1.0 / 3, 1.0 / 3, 1.0 / 3),
+    /** The luma of ITU-R BT.601, used by standard definition video and JPEG. */
+    BT601(0.299, 0.587, 0.114),
+    /** The luma of ITU-R BT.709, used by HD video; it matches the primaries of sRGB. */
+    BT709(0.2126, 0.7152, 0.0722);
+
+    private final double red;
+    private final double green;
+    private final double blue;
+
+    Luma(double red, double green, double blue) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+    }
+
+    public double getRed() {
+        return red;
+    }
+
+    public double getGreen() {
+        return green;
+    }
+
+    public double getBlue() {
+        return blue;
+    }
+}
@@ -0,0 +1,79 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on the number of bytes of decoded pixels held at the same time.
+ * Before an image is decoded its size is taken from the budget, blocking while the budget is used up,
+ * and it is given back once the output of the image has been written.
+ */
+public class MemoryBudget {
+    private final long capacity;
+    private long used;
+    private Lock lock;
+    private Condition released;
+
+    /**
+     * Constructor to create a budget.
+     * @param capacity the number of bytes of decoded pixels allowed at the same time
+     */
+    public MemoryBudget(long capacity) {
+        this.capacity = capacity;
+        lock = new ReentrantLock();
+        released = lock.newCondition();
+    }
+
+    /**
+     * This method takes bytes from the budget, waiting until enough has been released.
+     * A request larger than the whole budget is let through once nothing else is held,
+     * so a single oversized image still gets processed.
+     * @param bytes the number of bytes to take
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        try {
+            lock.lock();
+            while (used > 0 && used + bytes > capacity) {
+                released.await();
+            }
+            used += bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method gives bytes back to the budget and wakes the threads waiting for them.
+     * @param bytes the number of bytes to give back
+     */
+    public void release(long bytes) {
+        try {
+            lock.lock();
+            used -= bytes;
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes currently taken from the budget.
+     */
+    public long getUsed() {
+        try {
+            lock.lock();
+            return used;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
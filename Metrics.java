@@ -0,0 +1,209 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records where the time of a batch goes.
+ * Every stage of processing an image has a latency histogram, a count of the pixels it handled
+ * and the bytes it allocated. A snapshot of all of them can be written as JSON at the end of a batch,
+ * and periodically while a long batch runs.
+ */
+public class Metrics {
+
+    /**
+     * The stages of processing an image.
+     */
+    public enum Stage {
+        /** Reading an image file, or an image, into a raster. */
+        DECODE("decode"),
+        /** Filtering one slice. */
+        FILTER("filter"),
+        /** Writing the output PNG file. */
+        ENCODE("encode"),
+        /** Time a processor spent in the ThreadManager waiting list. */
+        QUEUE_WAIT("queueWait");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The start of a measurement, taken on the thread that does the work.
+     */
+    public static class Sample {
+        private final long startNanos;
+        private final long startAllocated;
+
+        private Sample(long startNanos, long startAllocated) {
+            this.startNanos = startNanos;
+            this.startAllocated = startAllocated;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    private static final long CREATED = System.nanoTime();
+    private static final Map<Stage, LatencyHistogram> LATENCIES = new EnumMap<>(Stage.class);
+    private static final Map<Stage, LongAdder> PIXELS = new EnumMap<>(Stage.class);
+    private static final Map<Stage, LongAdder> ALLOCATED = new EnumMap<>(Stage.class);
+    private static final LongAdder IMAGES = new LongAdder();
+    private static ScheduledExecutorService reporter;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            LATENCIES.put(stage, new LatencyHistogram());
+            PIXELS.put(stage, new LongAdder());
+            ALLOCATED.put(stage, new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * This method starts measuring a stage on the current thread.
+     * @return the sample to pass to {@link #end(Stage, Sample, long)}
+     */
+    public static Sample begin() {
+        return new Sample(System.nanoTime(), allocatedBytes());
+    }
+
+    /**
+     * This method finishes measuring a stage on the thread it was started on.
+     * @param stage the stage that was measured
+     * @param sample the sample from {@link #begin()}
+     * @param pixels the number of pixels the stage handled
+     */
+    public static void end(Stage stage, Sample sample, long pixels) {
+        LATENCIES.get(stage).record(System.nanoTime() - sample.startNanos);
+        PIXELS.get(stage).add(pixels);
+        if (sample.startAllocated >= 0) {
+            ALLOCATED.get(stage).add(Math.max(0, allocatedBytes() - sample.startAllocated));
+        }
+    }
+
+    /**
+     * This method records a duration which was not measured with a sample, such as a queue wait.
+     * @param stage the stage the duration belongs to
+     * @param nanos the duration in nanoseconds
+     */
+    public static void record(Stage stage, long nanos) {
+        LATENCIES.get(stage).record(nanos);
+    }
+
+    /**
+     * This method counts an image as fully processed.
+     */
+    public static void imageProcessed() {
+        IMAGES.increment();
+    }
+
+    /**
+     * This method describes every metric recorded so far as a JSON object.
+     * @return the JSON text
+     */
+    public static String snapshot() {
+        double uptimeSeconds = (System.nanoTime() - CREATED) / 1e9;
+        long images = IMAGES.sum();
+        long allocated = 0;
+        for (LongAdder bytes : ALLOCATED.values()) {
+            allocated += bytes.sum();
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT,
+                "{\n  \"uptimeSeconds\":%.3f,\n  \"images\":%d,\n  \"allocatedBytesPerImage\":%d,\n  \"stages\":{\n",
+                uptimeSeconds, images, images == 0 ? 0 : allocated / images));
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram latency = LATENCIES.get(stages[i]);
+            long pixels = PIXELS.get(stages[i]).sum();
+            double seconds = latency.getTotalNanos() / 1e9;
+            json.append(String.format(Locale.ROOT,
+                    "    \"%s\":{\"pixels\":%d,\"pixelsPerSecond\":%.1f,\"allocatedBytes\":%d,\"latency\":%s}%s\n",
+                    stages[i].key, pixels, seconds == 0 ? 0.0 : pixels / seconds,
+                    ALLOCATED.get(stages[i]).sum(), latency.toJson(), i < stages.length - 1 ? "," : ""));
+        }
+        return json.append("  }\n}\n").toString();
+    }
+
+    /**
+     * This method writes a snapshot to a file. The file is replaced in one step,
+     * so a reader never sees a half-written snapshot.
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    public static void writeSnapshot(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("metrics", ".json", parent);
+        Files.write(temp.toPath(), snapshot().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * This method starts writing a snapshot to a file at a fixed period, until {@link #stopReporting(File)} is called.
+     * @param file the file to write to
+     * @param periodSeconds the time between two snapshots
+     */
+    public static synchronized void startReporting(File file, long periodSeconds) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(file);
+            }
+            catch (IOException e) {
+                System.err.println("Could not write metrics to " + file + ": " + e);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * This method stops the periodic snapshots and writes a final one.
+     * @param file the file to write the final snapshot to
+     * @throws IOException if the file could not be written
+     */
+    public static synchronized void stopReporting(File file) throws IOException {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        writeSnapshot(file);
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS == null) {
+            return -1;
+        }
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+}
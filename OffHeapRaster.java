@@ -0,0 +1,123 @@
+package com.kcl.osc.imageprocessor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A raster whose pixels live in direct buffers outside of the garbage collected heap.
+ * The pixels are split over buffers of whole rows, each at most 1 GB,
+ * so an image may hold more than 2^31 pixels. The memory counts against -XX:MaxDirectMemorySize.
+ * It is given back to the system as soon as the raster is closed, instead of whenever
+ * the garbage collector gets round to the buffers.
+ */
+public class OffHeapRaster implements PixelBuffer, AutoCloseable {
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Without it the buffers are freed by the garbage collector once they are unreachable.
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int width;
+    private final int height;
+    private final int rowsPerChunk;
+    private ByteBuffer[] chunks;
+    private IntBuffer[] rows;
+    private volatile boolean closed;
+
+    /**
+     * Constructor to create an off-heap raster. Its pixels start as transparent black.
+     * @param width the width of the raster in pixels
+     * @param height the height of the raster in pixels
+     */
+    public OffHeapRaster(int width, int height) {
+        if (width < 1 || height < 1 || 4L * width > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Cannot hold a " + width + "x" + height + " image off heap");
+        }
+        this.width = width;
+        this.height = height;
+        this.rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / (4L * width));
+        int count = (height + rowsPerChunk - 1) / rowsPerChunk;
+        this.chunks = new ByteBuffer[count];
+        this.rows = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int chunkRows = Math.min(rowsPerChunk, height - i * rowsPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(chunkRows * width * 4).order(ByteOrder.nativeOrder());
+            rows[i] = chunks[i].asIntBuffer();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRow(int x, int y, int[] dest, int destOffset, int length) {
+        chunk(y).get(offset(x, y), dest, destOffset, length);
+    }
+
+    @Override
+    public void writeRow(int x, int y, int[] src, int srcOffset, int length) {
+        chunk(y).put(offset(x, y), src, srcOffset, length);
+    }
+
+    /**
+     * This method frees the pixels. The raster must not be used afterwards; closing it again does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuffer[] released = chunks;
+        chunks = null;
+        rows = null;
+        if (INVOKE_CLEANER != null) {
+            for (ByteBuffer chunk : released) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, chunk);
+                }
+                catch (ReflectiveOperationException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private IntBuffer chunk(int y) {
+        IntBuffer[] current = rows;
+        if (current == null) {
+            throw new IllegalStateException("The raster has been closed");
+        }
+        return current[y / rowsPerChunk];
+    }
+
+    private int offset(int x, int y) {
+        return (y % rowsPerChunk) * width + x;
+    }
+}
@@ -0,0 +1,224 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a whole image as an 8-bit PNG, compressing it on every core.
+ * A {@link GreyRaster} is written as a greyscale image, and any other buffer as RGBA.
+ * The rows are cut into chunks of about 128 KB which are filtered and deflated independently
+ * on the tile engine, the way pigz does it: each chunk is given the last 32 KB of the chunk before it
+ * as its dictionary and ends on a byte boundary, so the compressed chunks join into one zlib stream
+ * that is barely larger than one compressed on a single thread.
+ * Only a few chunks per core are in flight at a time, so the memory used does not grow with the image.
+ */
+public class ParallelPngEncoder {
+    /**
+     * The number of filtered bytes compressed as one piece of work.
+     */
+    private static final int CHUNK_BYTES = 128 * 1024;
+
+    /**
+     * The size of the deflate window, the most of the previous chunk a match can reach back into.
+     */
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+
+    private ParallelPngEncoder() {
+    }
+
+    /**
+     * This method encodes an image as a PNG.
+     * @param image the pixels to encode; they are only read
+     * @param out the stream the PNG is written to; it is flushed but not closed
+     * @param compressionLevel the deflate level, from 0 for none to 9 for the smallest files,
+     *                         or -1 for the default
+     * @throws IOException if the PNG could not be written
+     */
+    public static void write(PixelSource image, OutputStream out, int compressionLevel) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean grey = image instanceof GreyRaster;
+        int bytesPerPixel = grey ? 1 : 4;
+        int stride = width * bytesPerPixel;
+        int rowsPerChunk = Math.max(1, CHUNK_BYTES / (stride + 1));
+        int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+        ForkJoinPool pool = TileEngine.getPool();
+        int inFlight = 2 * pool.getParallelism();
+
+        DataOutputStream data = new DataOutputStream(out);
+        PngEncoder.writeHeader(data, width, height, grey);
+        PngEncoder.ChunkOutputStream idat = new PngEncoder.ChunkOutputStream(data);
+        idat.write(zlibHeader(compressionLevel));
+
+        List<CompletableFuture<byte[]>> filtered = new ArrayList<>(chunks);
+        List<CompletableFuture<byte[]>> compressed = new ArrayList<>(chunks);
+        Adler32 checksum = new Adler32();
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            // The chunks are started a few ahead of the one being written, so the workers never wait for the writer.
+            while (filtered.size() < Math.min(chunks, chunk + inFlight)) {
+                int next = filtered.size();
+                int firstRow = next * rowsPerChunk;
+                int rows = Math.min(rowsPerChunk, height - firstRow);
+                boolean last = next == chunks - 1;
+                CompletableFuture<byte[]> rowBytes = CompletableFuture.supplyAsync(
+                        () -> filterRows(image, bytesPerPixel, firstRow, rows), pool);
+                filtered.add(rowBytes);
+                if (next == 0) {
+                    compressed.add(rowBytes.thenApplyAsync(
+                            bytes -> deflate(bytes, null, compressionLevel, last), pool));
+                }
+                else {
+                    compressed.add(rowBytes.thenCombineAsync(filtered.get(next - 1),
+                            (bytes, before) -> deflate(bytes, before, compressionLevel, last), pool));
+                }
+            }
+
+            checksum.update(join(filtered.get(chunk)));
+            idat.write(join(compressed.get(chunk)));
+            // The chunk after this one already holds on to what it needs, so these can be collected.
+            if (chunk > 0) {
+                filtered.set(chunk - 1, null);
+            }
+            compressed.set(chunk, null);
+        }
+
+        int adler = (int) checksum.getValue();
+        idat.write(new byte[] {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler});
+        idat.flush();
+        PngEncoder.writeChunk(data, "IEND", new byte[0], 0, 0);
+        data.flush();
+    }
+
+    /**
+     * This method turns rows of the image into PNG rows, each a filter type followed by the filtered bytes.
+     * The row above the first one is read too, as the filters predict from it.
+     */
+    private static byte[] filterRows(PixelSource image, int bytesPerPixel, int firstRow, int rows) {
+        int width = image.getWidth();
+        int stride = width * bytesPerPixel;
+        int[] argb = new int[width];
+        byte[] previous = new byte[stride];
+        byte[] current = new byte[stride];
+        if (firstRow > 0) {
+            readRow(image, firstRow - 1, argb, previous);
+        }
+
+        PngEncoder.RowFilter filter = new PngEncoder.RowFilter(stride, bytesPerPixel);
+        byte[] output = new byte[rows * (stride + 1)];
+        for (int row = 0; row < rows; row++) {
+            readRow(image, firstRow + row, argb, current);
+            byte[] best = filter.apply(current, previous);
+            System.arraycopy(best, 0, output, row * (stride + 1), best.length);
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return output;
+    }
+
+    /**
+     * This method reads a row of the image in the byte order of a PNG row.
+     */
+    private static void readRow(PixelSource image, int y, int[] argb, byte[] dest) {
+        int width = image.getWidth();
+        if (image instanceof GreyRaster) {
+            System.arraycopy(((GreyRaster) image).getPixels(), y * width, dest, 0, width);
+        }
+        else {
+            image.readRow(0, y, argb, 0, width);
+            PngEncoder.toRgba(argb, 0, width, dest);
+        }
+    }
+
+    /**
+     * This method compresses one chunk as raw deflate blocks.
+     * Every chunk but the last ends with a sync flush, which pads it to a byte boundary
+     * without ending the stream, so the next chunk can be appended straight after it.
+     * @param bytes the filtered rows of the chunk
+     * @param before the filtered rows of the chunk before it, or null for the first chunk
+     * @param compressionLevel the deflate level
+     * @param last whether this chunk ends the stream
+     * @return the compressed chunk
+     */
+    private static byte[] deflate(byte[] bytes, byte[] before, int compressionLevel, boolean last) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            if (before != null) {
+                int length = Math.min(before.length, DICTIONARY_BYTES);
+                deflater.setDictionary(before, before.length - length, length);
+            }
+            deflater.setInput(bytes);
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else {
+                // A sync flush has only written everything once it leaves room in the buffer.
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * This method gives the two bytes that start a zlib stream with a 32 KB window.
+     * The level hint in the second byte is informative only; it is picked the way zlib picks it.
+     */
+    private static byte[] zlibHeader(int compressionLevel) {
+        int hint;
+        if (compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6) {
+            hint = 2;
+        }
+        else if (compressionLevel < 2) {
+            hint = 0;
+        }
+        else if (compressionLevel < 6) {
+            hint = 1;
+        }
+        else {
+            hint = 3;
+        }
+        int header = (0x78 << 8) | (hint << 6);
+        header += 31 - header % 31;
+        return new byte[] {(byte) (header >>> 8), (byte) header};
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Storage for the packed ARGB pixels of an image, read and written a row at a time.
+ * {@link Raster} keeps its pixels in an int array on the heap; {@link OffHeapRaster}
+ * keeps them outside of the heap, for images too large for one array, and {@link GreyRaster}
+ * keeps one grey byte per pixel, expanding it to ARGB as it is read.
+ */
+public interface PixelBuffer extends PixelSource {
+
+    /**
+     * This method copies part of a row of pixels into the buffer.
+     * @param x the first column
+     * @param y the row
+     * @param src the array to copy from
+     * @param srcOffset the index of the first pixel in the array
+     * @param length the number of pixels
+     */
+    void writeRow(int x, int y, int[] src, int srcOffset, int length);
+}
@@ -0,0 +1,23 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Packed ARGB pixels of an image which are only read, a row at a time.
+ * A {@link PixelBuffer} can also be written; the tiles of a filter only read their source,
+ * so a view such as the window of a strip needs nothing more than this.
+ */
+public interface PixelSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * This method copies part of a row of pixels out of the source.
+     * @param x the first column
+     * @param y the row
+     * @param dest the array to copy into
+     * @param destOffset the index of the first pixel in the array
+     * @param length the number of pixels
+     */
+    void readRow(int x, int y, int[] dest, int destOffset, int length);
+}
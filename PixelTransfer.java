@@ -0,0 +1,118 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+import java.nio.IntBuffer;
+
+/**
+ * Moves pixels between JavaFX images and rasters in bulk.
+ * Every transfer is a single getPixels/setPixels call over a whole region,
+ * instead of one format conversion per pixel.
+ */
+public class PixelTransfer {
+    private static final WritablePixelFormat<IntBuffer> INT_ARGB = PixelFormat.getIntArgbInstance();
+
+    private PixelTransfer() {
+    }
+
+    /**
+     * This method reads all of the pixels of an image into a new raster.
+     * @param image the image to read
+     * @return the raster holding the pixels of the image
+     */
+    public static Raster read(Image image) {
+        return read(image, null);
+    }
+
+    /**
+     * This method reads all of the pixels of an image into a raster borrowed from a pool.
+     * If the pixels cannot be read, the raster is given back to the pool before the failure is passed on.
+     * @param image the image to read
+     * @param pool the pool to borrow the raster from, or null for a new raster
+     * @return the raster holding the pixels of the image
+     */
+    public static Raster read(Image image, RasterPool pool) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        Raster raster = pool != null ? pool.borrow(width, height) : new Raster(width, height);
+        try {
+            readRegion(image, 0, 0, raster.getWidth(), raster.getHeight(), raster, 0, 0);
+        }
+        catch (RuntimeException e) {
+            if (pool != null) {
+                pool.release(raster);
+            }
+            throw e;
+        }
+        return raster;
+    }
+
+    /**
+     * This method reads all of the pixels of an image into a pixel buffer, a band of rows at a time,
+     * so a buffer held off heap never needs a copy of the whole image on the heap.
+     * @param image the image to read
+     * @param dest the buffer to read into, the same size as the image
+     */
+    public static void readInto(Image image, PixelBuffer dest) {
+        int width = dest.getWidth();
+        int bandRows = (int) Math.max(1, Math.min(dest.getHeight(), TileEngine.TARGET_TILE_PIXELS / width));
+        int[] band = new int[width * bandRows];
+        PixelReader pr = image.getPixelReader();
+        for (int y = 0; y < dest.getHeight(); y += bandRows) {
+            int rows = Math.min(bandRows, dest.getHeight() - y);
+            pr.getPixels(0, y, width, rows, INT_ARGB, band, 0, width);
+            for (int row = 0; row < rows; row++) {
+                dest.writeRow(0, y + row, band, row * width, width);
+            }
+        }
+    }
+
+    /**
+     * This method reads a rectangular region of an image into a raster with one call.
+     * @param image the image to read
+     * @param x the left edge of the region in the image
+     * @param y the top edge of the region in the image
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param dest the raster to read into
+     * @param destX the left edge of the region in the raster
+     * @param destY the top edge of the region in the raster
+     */
+    public static void readRegion(Image image, int x, int y, int width, int height, Raster dest, int destX, int destY) {
+        PixelReader pr = image.getPixelReader();
+        pr.getPixels(x, y, width, height, INT_ARGB, dest.getPixels(),
+                destY * dest.getWidth() + destX, dest.getWidth());
+    }
+
+    /**
+     * This method writes all of the pixels of a raster into a new JavaFX image.
+     * @param raster the raster to write
+     * @return the image holding the pixels of the raster
+     */
+    public static WritableImage write(Raster raster) {
+        WritableImage wimg = new WritableImage(raster.getWidth(), raster.getHeight());
+        writeRegion(raster, 0, 0, raster.getWidth(), raster.getHeight(), wimg.getPixelWriter(), 0, 0);
+        return wimg;
+    }
+
+    /**
+     * This method writes a rectangular region of a raster through a pixel writer with one call.
+     * @param raster the raster to write
+     * @param x the left edge of the region in the raster
+     * @param y the top edge of the region in the raster
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param pw the writer of the destination image
+     * @param destX the left edge of the region in the destination image
+     * @param destY the top edge of the region in the destination image
+     */
+    public static void writeRegion(Raster raster, int x, int y, int width, int height, PixelWriter pw, int destX, int destY) {
+        pw.setPixels(destX, destY, width, height, INT_ARGB, raster.getPixels(),
+                y * raster.getWidth() + x, raster.getWidth());
+    }
+}
@@ -0,0 +1,349 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGBA or greyscale PNG a few rows at a time, so an image never has to be held in memory as a whole.
+ * Each row is filtered with whichever of the five PNG filters gives the smallest sum of absolute
+ * differences, compressed, and written out in IDAT chunks as the compressed data fills them.
+ */
+public class PngEncoder implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final boolean grey;
+    private final Deflater deflater;
+    private final ChunkOutputStream chunks;
+    private final DeflaterOutputStream idat;
+    private final RowFilter filter;
+    private byte[] previous;
+    private byte[] current;
+    private int rowsWritten;
+    private boolean finished;
+
+    /**
+     * Constructor to create an encoder of an RGBA image. The PNG header is written straight away.
+     * @param out the stream the PNG is written to; it is closed along with the encoder
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param compressionLevel the deflate level, from 0 for none to 9 for the smallest files,
+     *                         or -1 for the default
+     * @throws IOException if the header could not be written
+     */
+    public PngEncoder(OutputStream out, int width, int height, int compressionLevel) throws IOException {
+        this(out, width, height, compressionLevel, false);
+    }
+
+    /**
+     * Constructor to create an encoder. The PNG header is written straight away.
+     * @param out the stream the PNG is written to; it is closed along with the encoder
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param compressionLevel the deflate level, from 0 for none to 9 for the smallest files,
+     *                         or -1 for the default
+     * @param grey whether to write an 8-bit greyscale image, one byte per pixel, instead of RGBA
+     * @throws IOException if the header could not be written
+     */
+    public PngEncoder(OutputStream out, int width, int height, int compressionLevel, boolean grey) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.grey = grey;
+        this.deflater = new Deflater(compressionLevel);
+        this.chunks = new ChunkOutputStream(this.out);
+        this.idat = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+        int bytesPerPixel = grey ? 1 : 4;
+        int stride = width * bytesPerPixel;
+        this.filter = new RowFilter(stride, bytesPerPixel);
+        this.previous = new byte[stride];
+        this.current = new byte[stride];
+
+        writeHeader(this.out, width, height, grey);
+    }
+
+    /**
+     * This method encodes the next rows of the image.
+     * A greyscale encoder stores the rounded mean of the channels of each pixel.
+     * @param argb packed ARGB pixels, row by row
+     * @param offset the index of the first pixel of the first row
+     * @param rows the number of rows
+     * @throws IOException if the rows could not be written
+     */
+    public void writeRows(int[] argb, int offset, int rows) throws IOException {
+        checkRows(rows);
+        for (int row = 0; row < rows; row++) {
+            int start = offset + row * width;
+            if (grey) {
+                for (int i = 0; i < width; i++) {
+                    current[i] = (byte) GreyRaster.toGrey(argb[start + i]);
+                }
+            }
+            else {
+                toRgba(argb, start, width, current);
+            }
+            writeCurrentRow();
+        }
+    }
+
+    /**
+     * This method encodes the next rows of a greyscale image.
+     * @param levels grey levels, one byte per pixel, row by row
+     * @param offset the index of the first pixel of the first row
+     * @param rows the number of rows
+     * @throws IOException if the rows could not be written
+     */
+    public void writeRows(byte[] levels, int offset, int rows) throws IOException {
+        if (!grey) {
+            throw new IllegalStateException("Grey levels can only be written to a greyscale image");
+        }
+        checkRows(rows);
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(levels, offset + row * width, current, 0, width);
+            writeCurrentRow();
+        }
+    }
+
+    private void checkRows(int rows) {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("The image only has " + height + " rows");
+        }
+    }
+
+    private void writeCurrentRow() throws IOException {
+        byte[] best = filter.apply(current, previous);
+        idat.write(best, 0, best.length);
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        rowsWritten++;
+    }
+
+    /**
+     * This method writes the end of the image. Every row must have been written.
+     * @throws IOException if the end could not be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written");
+        }
+        finished = true;
+        idat.finish();
+        chunks.flush();
+        deflater.end();
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    /**
+     * This method finishes the image if it is complete and closes the stream.
+     * An incomplete image is left without its end, so it is not mistaken for a whole one.
+     * @throws IOException if the end could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished && rowsWritten == height) {
+                finish();
+            }
+        }
+        finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * This method writes the PNG signature and the header of an 8-bit image.
+     * @param out the stream the PNG is written to
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param grey whether the image is greyscale, colour type 0, rather than RGBA, colour type 6
+     * @throws IOException if the header could not be written
+     */
+    static void writeHeader(DataOutputStream out, int width, int height, boolean grey) throws IOException {
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (grey ? 0 : 6);
+        writeChunk(out, "IHDR", header, 0, header.length);
+    }
+
+    /**
+     * This method unpacks a row of ARGB pixels into the RGBA byte order of a PNG row.
+     * @param argb packed ARGB pixels
+     * @param offset the index of the first pixel of the row
+     * @param width the number of pixels in the row
+     * @param dest the row bytes, four for every pixel
+     */
+    static void toRgba(int[] argb, int offset, int width, byte[] dest) {
+        for (int i = 0; i < width; i++) {
+            int pixel = argb[offset + i];
+            dest[4 * i] = (byte) (pixel >> 16);
+            dest[4 * i + 1] = (byte) (pixel >> 8);
+            dest[4 * i + 2] = (byte) pixel;
+            dest[4 * i + 3] = (byte) (pixel >>> 24);
+        }
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Picks a PNG filter for each row. It applies the five filters and keeps the one with the
+     * smallest sum of absolute values, the heuristic libpng uses.
+     */
+    static class RowFilter {
+        private final int bytesPerPixel;
+        private final byte[][] filtered;
+
+        /**
+         * Constructor to create a row filter.
+         * @param stride the number of bytes in a row
+         * @param bytesPerPixel the number of bytes in a pixel, the distance to the byte on the left
+         */
+        RowFilter(int stride, int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.filtered = new byte[5][stride + 1];
+        }
+
+        /**
+         * This method filters a row. The result is overwritten by the next call.
+         * @param current the row to filter
+         * @param previous the row above it, all zeros for the first row
+         * @return the filter type followed by the filtered row
+         */
+        byte[] apply(byte[] current, byte[] previous) {
+            int stride = current.length;
+            int bpp = bytesPerPixel;
+            byte[] none = filtered[0];
+            byte[] sub = filtered[1];
+            byte[] up = filtered[2];
+            byte[] average = filtered[3];
+            byte[] paeth = filtered[4];
+            // Each filter is a loop of its own, so the inner loops have no branch on the filter type.
+            for (int i = 0; i < stride; i++) {
+                none[i + 1] = current[i];
+                up[i + 1] = (byte) (current[i] - previous[i]);
+            }
+            for (int i = 0; i < bpp; i++) {
+                sub[i + 1] = current[i];
+                average[i + 1] = (byte) (current[i] - ((previous[i] & 0xFF) >>> 1));
+                paeth[i + 1] = (byte) (current[i] - previous[i]);
+            }
+            for (int i = bpp; i < stride; i++) {
+                int a = current[i - bpp] & 0xFF;
+                int b = previous[i] & 0xFF;
+                int c = previous[i - bpp] & 0xFF;
+                sub[i + 1] = (byte) (current[i] - a);
+                average[i + 1] = (byte) (current[i] - ((a + b) >>> 1));
+                paeth[i + 1] = (byte) (current[i] - paeth(a, b, c));
+            }
+
+            long bestSum = Long.MAX_VALUE;
+            byte[] best = null;
+            for (int type = 0; type < 5; type++) {
+                byte[] row = filtered[type];
+                row[0] = (byte) type;
+                long sum = 0;
+                for (int i = 1; i <= stride; i++) {
+                    sum += Math.abs(row[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = row;
+                }
+            }
+            return best;
+        }
+
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            }
+            return pb <= pc ? b : c;
+        }
+    }
+
+    /**
+     * Collects compressed data and writes it out as IDAT chunks of up to 64 KB.
+     */
+    static class ChunkOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        ChunkOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
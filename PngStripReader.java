@@ -0,0 +1,315 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a non-interlaced PNG file as a stream, one row at a time.
+ * Only the current and the previous row are kept, so the cost of reading the whole image
+ * is one pass over the file however it is split into strips. It handles every colour type,
+ * and bit depths of 1 to 16; samples of 16 bits are rounded to 8. Transparency from a
+ * tRNS chunk is applied; gamma and colour profiles are ignored, so a grey sample v is read as
+ * the pixel (v, v, v), as it is by image viewers.
+ */
+public class PngStripReader extends StripReader {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private final DataInputStream file;
+    private final InputStream pixels;
+    private final int bitDepth;
+    private final int colourType;
+    private final int channels;
+    private final int bytesPerPixel;
+    private int[] palette;
+    private int transparent = -1;
+    private int transparentRed;
+    private int transparentGreen;
+    private int transparentBlue;
+    private byte[] previous;
+    private byte[] current;
+
+    private PngStripReader(DataInputStream file, int width, int height, int bitDepth, int colourType) throws IOException {
+        super(width, height);
+        this.file = file;
+        this.bitDepth = bitDepth;
+        this.colourType = colourType;
+        this.channels = colourType == 0 || colourType == 3 ? 1 : colourType == 4 ? 2 : colourType == 2 ? 3 : 4;
+        this.bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+        int stride = (int) (((long) width * channels * bitDepth + 7) / 8);
+        this.previous = new byte[stride];
+        this.current = new byte[stride];
+        readChunksBeforePixels();
+        this.pixels = new InflaterInputStream(new IdatInputStream());
+    }
+
+    /**
+     * This method opens a PNG file if it can be decoded as a stream.
+     * @param file the image file
+     * @return the reader, or null if the file is not a PNG or is interlaced
+     * @throws IOException if the file could not be read
+     */
+    public static PngStripReader open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            int read = in.read(signature);
+            if (read != SIGNATURE.length || !Arrays.equals(signature, SIGNATURE)) {
+                in.close();
+                return null;
+            }
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type != chunkType("IHDR") || length != 13) {
+                throw new IOException("A PNG file must start with its header: " + file);
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int bitDepth = in.readUnsignedByte();
+            int colourType = in.readUnsignedByte();
+            in.readUnsignedByte();
+            in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            in.readInt();
+            if (interlace != 0) {
+                in.close();
+                return null;
+            }
+            return new PngStripReader(in, width, height, bitDepth, colourType);
+        }
+        catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void decodeRows(int firstRow, int rows, int[] dest, int destOffset) throws IOException {
+        for (int row = 0; row < rows; row++) {
+            int filter = pixels.read();
+            if (filter < 0) {
+                throw new EOFException("The PNG data ends before row " + (firstRow + row));
+            }
+            readFully(current);
+            unfilter(filter);
+            toArgb(dest, destOffset + row * getWidth());
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readChunksBeforePixels() throws IOException {
+        while (true) {
+            file.mark(8);
+            int length = file.readInt();
+            int type = file.readInt();
+            if (type == chunkType("IDAT")) {
+                file.reset();
+                return;
+            }
+            byte[] data = new byte[length];
+            file.readFully(data);
+            file.readInt();
+            if (type == chunkType("PLTE")) {
+                palette = new int[256];
+                Arrays.fill(palette, 0xFF000000);
+                for (int i = 0; i < length / 3; i++) {
+                    palette[i] = Raster.pack(data[3 * i] & 0xFF, data[3 * i + 1] & 0xFF, data[3 * i + 2] & 0xFF);
+                }
+            }
+            else if (type == chunkType("tRNS")) {
+                if (colourType == 3 && palette != null) {
+                    for (int i = 0; i < length; i++) {
+                        palette[i] = (palette[i] & 0xFFFFFF) | ((data[i] & 0xFF) << 24);
+                    }
+                }
+                else if (colourType == 0) {
+                    transparent = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                }
+                else if (colourType == 2) {
+                    transparent = 0;
+                    transparentRed = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                    transparentGreen = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+                    transparentBlue = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+                }
+            }
+            else if (type == chunkType("IEND")) {
+                throw new IOException("The PNG file has no image data");
+            }
+        }
+    }
+
+    private void readFully(byte[] row) throws IOException {
+        int read = 0;
+        while (read < row.length) {
+            int n = pixels.read(row, read, row.length - read);
+            if (n < 0) {
+                throw new EOFException("The PNG data ends in the middle of a row");
+            }
+            read += n;
+        }
+    }
+
+    private void unfilter(int filter) throws IOException {
+        for (int i = 0; i < current.length; i++) {
+            int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+            int predicted;
+            switch (filter) {
+                case 0:
+                    predicted = 0;
+                    break;
+                case 1:
+                    predicted = a;
+                    break;
+                case 2:
+                    predicted = b;
+                    break;
+                case 3:
+                    predicted = (a + b) >>> 1;
+                    break;
+                case 4:
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    predicted = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    break;
+                default:
+                    throw new IOException("Unknown PNG filter " + filter);
+            }
+            current[i] = (byte) (current[i] + predicted);
+        }
+    }
+
+    private void toArgb(int[] dest, int offset) {
+        for (int x = 0; x < getWidth(); x++) {
+            int argb;
+            switch (colourType) {
+                case 0: {
+                    int grey = sample(x, 0);
+                    argb = Raster.pack(to8(grey), to8(grey), to8(grey));
+                    if (grey == transparent) {
+                        argb &= 0xFFFFFF;
+                    }
+                    break;
+                }
+                case 2: {
+                    int r = sample(x, 0);
+                    int g = sample(x, 1);
+                    int b = sample(x, 2);
+                    argb = Raster.pack(to8(r), to8(g), to8(b));
+                    if (transparent == 0 && r == transparentRed && g == transparentGreen && b == transparentBlue) {
+                        argb &= 0xFFFFFF;
+                    }
+                    break;
+                }
+                case 3:
+                    argb = palette[sample(x, 0)];
+                    break;
+                case 4: {
+                    int grey = to8(sample(x, 0));
+                    argb = (to8(sample(x, 1)) << 24) | (grey << 16) | (grey << 8) | grey;
+                    break;
+                }
+                default:
+                    argb = (to8(sample(x, 3)) << 24) | (to8(sample(x, 0)) << 16) | (to8(sample(x, 1)) << 8) | to8(sample(x, 2));
+            }
+            dest[offset + x] = argb;
+        }
+    }
+
+    /**
+     * This method reads one sample of the current row at its full bit depth.
+     */
+    private int sample(int x, int channel) {
+        if (bitDepth == 8) {
+            return current[x * channels + channel] & 0xFF;
+        }
+        if (bitDepth == 16) {
+            int i = 2 * (x * channels + channel);
+            return ((current[i] & 0xFF) << 8) | (current[i + 1] & 0xFF);
+        }
+        // Depths below 8 only occur with a single channel, packed from the high bits down.
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return ((current[bit >> 3] & 0xFF) >> shift) & ((1 << bitDepth) - 1);
+    }
+
+    /**
+     * This method scales a sample of the image's bit depth to 8 bits, rounding to the nearest value.
+     */
+    private int to8(int sample) {
+        if (bitDepth == 8 || colourType == 3) {
+            return sample;
+        }
+        int max = (1 << bitDepth) - 1;
+        return (sample * 255 + max / 2) / max;
+    }
+
+    private static int chunkType(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    /**
+     * Gives the data of consecutive IDAT chunks as one stream.
+     */
+    private class IdatInputStream extends InputStream {
+        private int remaining;
+        private boolean started;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return file.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = file.read(buffer, offset, Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("The PNG file ends in the middle of a chunk");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0 && !ended) {
+                if (started) {
+                    // The CRC of the chunk just read.
+                    file.readInt();
+                }
+                started = true;
+                int length = file.readInt();
+                int type = file.readInt();
+                if (type != chunkType("IDAT")) {
+                    ended = true;
+                    return false;
+                }
+                remaining = length;
+            }
+            return !ended;
+        }
+    }
+}
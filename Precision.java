@@ -0,0 +1,14 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The arithmetic an image processor filters with.
+ */
+public enum Precision {
+    /** Channels and weights are floating point, and every sum is rounded to 8 bits at the end. */
+    FLOAT,
+    /**
+     * Channels stay 8-bit integers and weights are fixed point, as described in {@link FixedPointConvolution}.
+     * The output is bit-exact on every platform and with any tile shape.
+     */
+    FIXED_POINT
+}
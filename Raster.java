@@ -0,0 +1,158 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * A primitive image raster.
+ * Pixels are stored as packed 32-bit ARGB values in a single row-major int array,
+ * so no per-pixel objects are created while an image is being filtered.
+ * Conversion to and from JavaFX images is done by {@link PixelTransfer}.
+ */
+public class Raster implements PixelBuffer {
+    /**
+     * The packed ARGB value of the grey read outside of an image under {@link EdgePolicy#CONSTANT}.
+     */
+    public static final int BORDER_GREY = pack(128, 128, 128);
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /**
+     * Constructor to create an empty raster.
+     * @param width the width of the raster in pixels
+     * @param height the height of the raster in pixels
+     */
+    public Raster(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+    }
+
+    /**
+     * Constructor to create a raster filled with a single colour.
+     * @param width the width of the raster in pixels
+     * @param height the height of the raster in pixels
+     * @param argb the packed ARGB value every pixel is set to
+     */
+    public Raster(int width, int height, int argb) {
+        this(width, height);
+        Arrays.fill(pixels, argb);
+    }
+
+    /**
+     * Constructor to create a raster over an existing array of pixels, without copying it.
+     * @param width the width of the raster in pixels
+     * @param height the height of the raster in pixels
+     * @param pixels the packed pixels, row by row; it must hold exactly width * height values
+     */
+    public Raster(int width, int height, int[] pixels) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * This method gives direct access to the packed pixels, stored row by row.
+     * @return the backing array of this raster
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getArgb(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void setArgb(int x, int y, int argb) {
+        pixels[y * width + x] = argb;
+    }
+
+    @Override
+    public void readRow(int x, int y, int[] dest, int destOffset, int length) {
+        System.arraycopy(pixels, y * width + x, dest, destOffset, length);
+    }
+
+    @Override
+    public void writeRow(int x, int y, int[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, pixels, y * width + x, length);
+    }
+
+    /**
+     * This method copies a rectangular region of this raster into another raster.
+     * @param srcX the left edge of the region in this raster
+     * @param srcY the top edge of the region in this raster
+     * @param regionWidth the width of the region
+     * @param regionHeight the height of the region
+     * @param dest the raster to copy into
+     * @param destX the left edge of the region in the destination
+     * @param destY the top edge of the region in the destination
+     */
+    public void copyRegion(int srcX, int srcY, int regionWidth, int regionHeight, Raster dest, int destX, int destY) {
+        for (int row = 0; row < regionHeight; row++) {
+            System.arraycopy(pixels, (srcY + row) * width + srcX,
+                    dest.pixels, (destY + row) * dest.width + destX, regionWidth);
+        }
+    }
+
+    /**
+     * This method packs 8-bit channel values into an opaque ARGB pixel.
+     * @param red the red channel, 0 to 255
+     * @param green the green channel, 0 to 255
+     * @param blue the blue channel, 0 to 255
+     * @return the packed pixel
+     */
+    public static int pack(int red, int green, int blue) {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * This method ensures that the computations on color values have not
+     * strayed outside of the range [0,1].
+     * @param RGBValue the value to clamp.
+     * @return The clamped value.
+     */
+    public static double clampRGB(double RGBValue) {
+        if (RGBValue < 0.0) {
+            return 0.0;
+        } else if (RGBValue > 1.0) {
+            return 1.0;
+        } else {
+            return RGBValue;
+        }
+    }
+
+    /**
+     * This method converts a channel value in the range [0,1] to an 8-bit channel value.
+     * @param value the channel value, already clamped to [0,1]
+     * @return the rounded 8-bit value
+     */
+    public static int toByte(double value) {
+        return (int) Math.round(value * 255.0);
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+}
@@ -0,0 +1,148 @@
+package com.kcl.osc.imageprocessor;
+
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+/**
+ * Reads image files into rasters and writes rasters out as PNG files.
+ */
+public class RasterIO {
+
+    private RasterIO() {
+    }
+
+    /**
+     * This method decodes an image file into a raster.
+     * @param file the image file
+     * @return the pixels of the image
+     * @throws IOException if the file could not be decoded
+     */
+    public static Raster read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * This method decodes an image file into a raster borrowed from a pool.
+     * @param file the image file
+     * @param pool the pool to borrow the raster from, or null for a new raster
+     * @return the pixels of the image
+     * @throws IOException if the file could not be decoded
+     */
+    public static Raster read(File file, RasterPool pool) throws IOException {
+        return PixelTransfer.read(decode(file), pool);
+    }
+
+    /**
+     * This method decodes an image file straight into an off-heap raster, a band of rows at a time,
+     * so the image is never held on the heap as a whole and may have more than 2^31 pixels.
+     * @param file the image file
+     * @return the pixels of the image; the caller closes the raster
+     * @throws IOException if the file could not be decoded
+     */
+    public static OffHeapRaster readOffHeap(File file) throws IOException {
+        try (StripReader reader = StripReader.open(file)) {
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            OffHeapRaster raster = new OffHeapRaster(width, height);
+            try {
+                int bandRows = (int) Math.max(1, Math.min(height, TileEngine.TARGET_TILE_PIXELS / width));
+                int[] band = new int[width * bandRows];
+                for (int y = 0; y < height; y += bandRows) {
+                    int rows = Math.min(bandRows, height - y);
+                    reader.readRows(rows, band, 0);
+                    for (int row = 0; row < rows; row++) {
+                        raster.writeRow(0, y + row, band, row * width, width);
+                    }
+                }
+                return raster;
+            }
+            catch (IOException | RuntimeException e) {
+                raster.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * This method decodes an image file into a JavaFX image.
+     * @param file the image file
+     * @return the decoded image
+     * @throws IOException if the file could not be decoded
+     */
+    public static Image decode(File file) throws IOException {
+        Image image = new Image("file:" + file.getPath());
+        if (image.isError()) {
+            throw new IOException("Could not decode " + file, image.getException());
+        }
+        return image;
+    }
+
+    /**
+     * This method works out how many bytes the decoded pixels of an image file take,
+     * reading only the header of the file.
+     * @param file the image file
+     * @return four bytes for every pixel of the image
+     * @throws IOException if the file is not an image that can be read
+     */
+    public static long decodedBytes(File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No reader available for " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0) * 4;
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * This method encodes a raster as a PNG file with the default compression level.
+     * @param raster the pixels to write
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    public static void writePng(PixelBuffer raster, File file) throws IOException {
+        writePng(raster, file, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * This method encodes a raster as a PNG file, compressing it on every core.
+     * A file that could not be written completely is deleted, so no truncated image is left behind.
+     * An existing file is replaced rather than written over, so a hard link to it, such as one
+     * into a {@link ResultCache}, keeps what it held.
+     * @param raster the pixels to write
+     * @param file the file to write to
+     * @param compressionLevel the deflate level, from 0 for the fastest to 9 for the smallest files,
+     *                         or -1 for the default
+     * @throws IOException if the file could not be written
+     */
+    public static void writePng(PixelBuffer raster, File file, int compressionLevel) throws IOException {
+        Metrics.Sample sample = Metrics.begin();
+        Files.deleteIfExists(file.toPath());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            ParallelPngEncoder.write(raster, out, compressionLevel);
+        }
+        catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        Metrics.end(Metrics.Stage.ENCODE, sample, (long) raster.getWidth() * raster.getHeight());
+    }
+}
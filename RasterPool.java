@@ -0,0 +1,171 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of pixel buffers shared by the processors of a batch.
+ * Buffers are kept in buckets by their number of pixels, so every image of a batch of same-sized
+ * frames reuses the buffers of an earlier one, whichever way round it is. The pool holds at most
+ * its capacity in idle buffers; when a returned buffer does not fit, the buffers of the least
+ * recently used size are dropped first.
+ */
+public class RasterPool {
+    private final long capacity;
+    private long pooledBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final LinkedHashMap<Integer, ArrayDeque<int[]>> buckets;
+    private Lock lock;
+
+    /**
+     * Constructor to create a pool.
+     * @param capacity the number of bytes of idle buffers the pool may hold
+     */
+    public RasterPool(long capacity) {
+        this.capacity = capacity;
+        // Access order, so iterating starts at the least recently used size.
+        this.buckets = new LinkedHashMap<>(16, 0.75f, true);
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * This method gives a raster of the given size, reusing an idle buffer when there is one.
+     * The pixels of a reused raster still hold whatever was last written to them.
+     * @param width the width of the raster in pixels
+     * @param height the height of the raster in pixels
+     * @return the raster
+     */
+    public Raster borrow(int width, int height) {
+        int[] pixels = null;
+        try {
+            lock.lock();
+            ArrayDeque<int[]> bucket = buckets.get(width * height);
+            if (bucket != null && !bucket.isEmpty()) {
+                pixels = bucket.pop();
+                pooledBytes -= bytes(pixels);
+                hits++;
+            }
+            else {
+                misses++;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return pixels != null ? new Raster(width, height, pixels) : new Raster(width, height);
+    }
+
+    /**
+     * This method gives a raster back to the pool. The raster must not be used afterwards.
+     * @param raster the raster, or null
+     */
+    public void release(Raster raster) {
+        if (raster == null) {
+            return;
+        }
+        int[] pixels = raster.getPixels();
+        long size = bytes(pixels);
+        if (size > capacity) {
+            return;
+        }
+        try {
+            lock.lock();
+            Iterator<Map.Entry<Integer, ArrayDeque<int[]>>> eldest = buckets.entrySet().iterator();
+            while (pooledBytes + size > capacity && eldest.hasNext()) {
+                ArrayDeque<int[]> bucket = eldest.next().getValue();
+                while (!bucket.isEmpty() && pooledBytes + size > capacity) {
+                    pooledBytes -= bytes(bucket.removeLast());
+                    evictions++;
+                }
+                if (bucket.isEmpty()) {
+                    eldest.remove();
+                }
+            }
+            buckets.computeIfAbsent(pixels.length, length -> new ArrayDeque<>()).push(pixels);
+            pooledBytes += size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method drops every idle buffer.
+     */
+    public void clear() {
+        try {
+            lock.lock();
+            buckets.clear();
+            pooledBytes = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of idle buffers held by the pool.
+     */
+    public long getPooledBytes() {
+        try {
+            lock.lock();
+            return pooledBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rasters which were given a reused buffer.
+     */
+    public long getHits() {
+        try {
+            lock.lock();
+            return hits;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of rasters which needed a new buffer.
+     */
+    public long getMisses() {
+        try {
+            lock.lock();
+            return misses;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of idle buffers dropped to stay within the capacity.
+     */
+    public long getEvictions() {
+        try {
+            lock.lock();
+            return evictions;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static long bytes(int[] pixels) {
+        return (long) pixels.length * 4;
+    }
+}
@@ -0,0 +1,290 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of filtered images on disk, which lets a batch run over the same files again skip the ones
+ * that have not changed. Every output is stored under a key made from a hash of the bytes of the input file,
+ * a description of everything that decides the output, and the version of the engine.
+ * On a hit the cached file is linked to where the output belongs, or copied where links are not supported,
+ * so the input is not decoded, filtered or encoded again.
+ * The cache holds at most its capacity in files; when a new output does not fit, the least recently used
+ * ones are deleted first. The time a file was last used is kept as its modification time,
+ * so the order carries over from one run to the next.
+ */
+public class ResultCache {
+    /**
+     * The version of the filtering engine, which is part of every key. It has to change whenever a change
+     * to the code changes what a filter writes, so that nothing cached by an older engine is used.
+     */
+    public static final String ENGINE_VERSION = "1";
+
+    private static final String SUFFIX = ".png";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long capacity;
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final LinkedHashMap<String, Long> entries;
+    private Lock lock;
+
+    /**
+     * Constructor to open a cache, creating its directory if needed.
+     * The files already in the directory are taken in the order they were last used.
+     * @param directory the directory the cached outputs are kept in
+     * @param capacity the number of bytes of cached files the directory may hold
+     * @throws IOException if the directory could not be created or read
+     */
+    public ResultCache(File directory, long capacity) throws IOException {
+        this.directory = directory.toPath();
+        this.capacity = capacity;
+        // Access order, so iterating starts at the least recently used entry.
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        lock = new ReentrantLock();
+
+        Files.createDirectories(this.directory);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                // Left behind by a run which stopped while storing an output.
+                Files.deleteIfExists(file.toPath());
+            }
+            else if (name.endsWith(SUFFIX)) {
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                cachedBytes += file.length();
+            }
+        }
+        evict(0);
+    }
+
+    /**
+     * This method hashes the bytes of a file.
+     * @param file the file
+     * @return the SHA-256 hash of the file, in hexadecimal
+     * @throws IOException if the file could not be read
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * This method makes the key an output is cached under.
+     * @param inputHash the hash of the input file, from {@link #hash(File)}
+     * @param spec everything else that decides the output, from {@link #describe}
+     * @return the key
+     */
+    public static String key(String inputHash, String spec) {
+        MessageDigest digest = sha256();
+        digest.update((inputHash + "\n" + spec + "\n" + ENGINE_VERSION).getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * This method describes everything besides the input which decides what a processor writes.
+     * The SIMD backend is part of it, as it may round some floating point results the other way.
+     * @param chain the filters applied
+     * @param edge how pixels outside of the image are read
+     * @param precision the arithmetic the image is filtered with
+     * @param compressionLevel the deflate level the output is written with
+     * @return the description
+     */
+    public static String describe(FilterChain chain, EdgePolicy edge, Precision precision, int compressionLevel) {
+        return chain.getSignature() + " " + edge + " " + precision + " level " + compressionLevel
+                + (Convolution.isVectorEnabled() ? " vector" : " scalar");
+    }
+
+    /**
+     * This method puts the cached output for a key where the output belongs, replacing any file there.
+     * @param key the key of the output
+     * @param output the file the output belongs in
+     * @return whether the output was cached; if not, nothing is changed
+     * @throws IOException if the cached output could not be linked or copied
+     */
+    public boolean fetch(String key, File output) throws IOException {
+        try {
+            lock.lock();
+            Long size = entries.get(key);
+            Path cached = directory.resolve(key + SUFFIX);
+            if (size == null || !Files.exists(cached)) {
+                if (size != null) {
+                    // Deleted from outside the cache.
+                    entries.remove(key);
+                    cachedBytes -= size;
+                }
+                misses++;
+                return false;
+            }
+            hits++;
+            Path target = output.toPath();
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, cached);
+            }
+            catch (IOException | UnsupportedOperationException e) {
+                Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            cached.toFile().setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method copies a newly written output into the cache.
+     * An output larger than the whole capacity is not cached.
+     * @param key the key of the output
+     * @param output the file the output was written to
+     * @throws IOException if the output could not be copied
+     */
+    public void store(String key, File output) throws IOException {
+        long size = output.length();
+        if (size > capacity) {
+            return;
+        }
+        // The copy is made outside of the lock, and only takes the place of the entry once it is complete.
+        Path temporary = Files.createTempFile(directory, key, TEMPORARY_SUFFIX);
+        try {
+            Files.copy(output.toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                lock.lock();
+                Long previous = entries.remove(key);
+                if (previous != null) {
+                    cachedBytes -= previous;
+                }
+                evict(size);
+                Files.move(temporary, directory.resolve(key + SUFFIX),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                entries.put(key, size);
+                cachedBytes += size;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * This method deletes the least recently used files until the given number of bytes fits.
+     * It is called with the lock held, or from the constructor.
+     */
+    private void evict(long size) throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (cachedBytes + size > capacity && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(directory.resolve(entry.getKey() + SUFFIX));
+            cachedBytes -= entry.getValue();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes of cached files.
+     */
+    public long getCachedBytes() {
+        try {
+            lock.lock();
+            return cachedBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of outputs which were found in the cache.
+     */
+    public long getHits() {
+        try {
+            lock.lock();
+            return hits;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of outputs which were not in the cache.
+     */
+    public long getMisses() {
+        try {
+            lock.lock();
+            return misses;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of cached files deleted to stay within the capacity.
+     */
+    public long getEvictions() {
+        try {
+            lock.lock();
+            return evictions;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event emitted when the {@link ThreadManager} moves a processor from its waiting list into the pool.
+ */
+@Name("com.kcl.osc.imageprocessor.Schedule")
+@Label("Job Scheduled")
+@Category({"Image Processor", "Scheduler"})
+@Description("A processor leaving the waiting list and starting to run")
+class SchedulerEvent extends jdk.jfr.Event {
+    @Label("Output File")
+    String filename;
+
+    @Label("Time Waited")
+    @Timespan(Timespan.NANOSECONDS)
+    long waited;
+
+    @Label("Running")
+    int running;
+
+    @Label("Still Waiting")
+    int waiting;
+}
@@ -0,0 +1,33 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event covering the filtering of one tile by an {@link ImageSliceProcessor}.
+ */
+@Name("com.kcl.osc.imageprocessor.Slice")
+@Label("Image Slice")
+@Category({"Image Processor", "Slices"})
+@Description("A tile of an image being filtered on the tile engine")
+class SliceEvent extends jdk.jfr.Event {
+    @Label("Filter")
+    String filter;
+
+    @Label("First Column")
+    int firstColumn;
+
+    @Label("First Row")
+    int firstRow;
+
+    @Label("Columns")
+    int columns;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Pixels")
+    long pixels;
+}
@@ -0,0 +1,118 @@
+package com.kcl.osc.imageprocessor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads an image file from top to bottom, a few rows at a time.
+ * Only the rows asked for are held in memory, so an image can be processed
+ * without ever being decoded as a whole.
+ */
+public abstract class StripReader implements Closeable {
+    private final int width;
+    private final int height;
+    private int nextRow;
+
+    protected StripReader(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * This method opens an image file for reading in strips.
+     * Non-interlaced PNG files are decoded as a stream by {@link PngStripReader}. Every other format
+     * is read through ImageIO, one source region per strip; a reader which has to decode a file from
+     * its start for every region makes that quadratic in the height, so large strips suit it best.
+     * @param file the image file
+     * @return the reader, positioned at the first row
+     * @throws IOException if the file is not an image that can be read
+     */
+    public static StripReader open(File file) throws IOException {
+        StripReader png = PngStripReader.open(file);
+        if (png != null) {
+            return png;
+        }
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        Iterator<ImageReader> readers = iis == null ? null : ImageIO.getImageReaders(iis);
+        if (readers == null || !readers.hasNext()) {
+            if (iis != null) {
+                iis.close();
+            }
+            throw new IOException("No reader available for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(iis, true, true);
+        return new RegionStripReader(reader, iis);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the index of the row the next call to {@link #readRows} starts at.
+     */
+    public int getNextRow() {
+        return nextRow;
+    }
+
+    /**
+     * This method reads the next rows of the image as packed ARGB pixels.
+     * @param rows the number of rows
+     * @param dest the array to read into
+     * @param destOffset the index of the first pixel of the first row in the array
+     * @throws IOException if the rows could not be decoded
+     */
+    public void readRows(int rows, int[] dest, int destOffset) throws IOException {
+        if (nextRow + rows > height) {
+            throw new IllegalStateException("The image only has " + height + " rows");
+        }
+        decodeRows(nextRow, rows, dest, destOffset);
+        nextRow += rows;
+    }
+
+    /**
+     * This method decodes the given rows, which always follow the rows decoded before them.
+     */
+    protected abstract void decodeRows(int firstRow, int rows, int[] dest, int destOffset) throws IOException;
+
+    /**
+     * Reads strips through an ImageIO reader, setting the source region of each read to the strip.
+     */
+    private static class RegionStripReader extends StripReader {
+        private final ImageReader reader;
+        private final ImageInputStream input;
+
+        RegionStripReader(ImageReader reader, ImageInputStream input) throws IOException {
+            super(reader.getWidth(0), reader.getHeight(0));
+            this.reader = reader;
+            this.input = input;
+        }
+
+        @Override
+        protected void decodeRows(int firstRow, int rows, int[] dest, int destOffset) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, firstRow, getWidth(), rows));
+            BufferedImage strip = reader.read(0, param);
+            strip.getRGB(0, 0, getWidth(), rows, dest, destOffset, getWidth());
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            input.close();
+        }
+    }
+}
@@ -1,29 +1,34 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.util.Pair;
-
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ThreadManager implements Runnable {
 
     private int poolSize;
-    private ArrayList<ImageProcessorMT>waitingList;
-    private ArrayList<Pair<ImageProcessorMT,Thread>> pool;
+    private BlockingQueue<ImageProcessorMT> waitingList;
+    private int running;
     private Lock lock;
-    private boolean started;
-    private boolean finishedJoined;
+    private Condition poolChanged;
+    private Condition terminated;
+    private volatile boolean started;
+    private boolean finished;
+
     /**
      * Constructor to initialise the thread pool.
      * @param poolSize the size of the pool
      */
     public ThreadManager(int poolSize) {
         this.poolSize = poolSize;
-        waitingList = new ArrayList<>();
-        pool = new ArrayList<>();
+        waitingList = new LinkedBlockingQueue<>();
         lock = new ReentrantLock();
+        poolChanged = lock.newCondition();
+        terminated = lock.newCondition();
     }
 
     /**
@@ -32,97 +37,114 @@ public class ThreadManager implements Runnable {
      * @param imageProcessorMT the processor for the image
      */
     public void addImageProcessor(ImageProcessorMT imageProcessorMT) {
-        try {
-            lock.lock();
-            waitingList.add(imageProcessorMT);
-        }
-        finally {
-            lock.unlock();
-        }
+        imageProcessorMT.setQueuedAt(System.nanoTime());
+        waitingList.add(imageProcessorMT);
+        signalPoolChanged();
+    }
+
+    /**
+     * This method adds an image processor to the waiting list and gives the future of its result.
+     * Cancelling the future removes the processor from the waiting list if it has not started yet,
+     * or stops it at the next slice if it has.
+     * @param imageProcessorMT the processor for the image
+     * @return the future which is completed with the filtered image
+     */
+    public CompletableFuture<FilterResult> submit(ImageProcessorMT imageProcessorMT) {
+        CompletableFuture<FilterResult> future = imageProcessorMT.getFuture();
+        future.whenComplete((result, error) -> {
+            if (error != null && waitingList.remove(imageProcessorMT)) {
+                signalPoolChanged();
+            }
+        });
+        addImageProcessor(imageProcessorMT);
+        return future;
+    }
+
+    /**
+     * This method submits an image processor which must finish within the given time.
+     * If it does not, its future is completed with a TimeoutException and the processor is stopped.
+     * The time includes any time the processor spends in the waiting list.
+     * @param imageProcessorMT the processor for the image
+     * @param timeout the longest time the job may take
+     * @param unit the unit of the timeout
+     * @return the future which is completed with the filtered image
+     */
+    public CompletableFuture<FilterResult> submit(ImageProcessorMT imageProcessorMT, long timeout, TimeUnit unit) {
+        return submit(imageProcessorMT).orTimeout(timeout, unit);
     }
 
     /**
-     * This thread initially adds all the threads from the waiting list to the pool
-     * Then it keeps waiting until the currently running threads finish or a new thread is added in the waiting list.
-     * On adding to the waiting list, it would manage that thread and put it in the pool if the pool has space.
+     * This method starts processors from the waiting list while the pool has space.
+     * Between changes it sleeps on a condition, so it uses no CPU while the pool is full
+     * or the waiting list is empty. It is woken when a processor is added or a running processor finishes.
      * This method would terminate if the waiting list is empty and the pool is empty.
      */
     public void run() {
         try {
             lock.lock();
-            int sizeToAllow = Math.min(waitingList.size(), poolSize); // This controls the current size the pool should have.
-
-            // Add threads from the waiting list to the pool
-            for (int i = 0; i < sizeToAllow; i++) {
-                pool.add(new Pair(waitingList.get(i),new Thread(waitingList.get(i))));
-            }
-
-            // Popping from the waiting list
-            Iterator<ImageProcessorMT> iterator = waitingList.iterator();
-            for (int i = 0; i < sizeToAllow; i++) {
-                iterator.next();
-                iterator.remove();
+            while (true) {
+                ImageProcessorMT next;
+                while (running < poolSize && (next = waitingList.poll()) != null) {
+                    startProcessor(next);
+                }
+                if (running == 0 && waitingList.isEmpty()) {
+                    break;
+                }
+                poolChanged.awaitUninterruptibly();
             }
-
-            // Starts all the threads
-            pool.forEach(elem -> elem.getValue().start());
+            finished = true;
+            terminated.signalAll();
         }
         finally {
             lock.unlock();
         }
-        while(!pool.isEmpty() || !waitingList.isEmpty()) {
-            managePool();
-        }
         started = false;
     }
 
     /**
-     * This method checks the waiting list for processes
-     * that are waiting and checks the thread pool for the processes
-     * which are vacant. When it finds a vacancy in the thread pool,
-     * it brings a thread from the waiting list and starts it.
+     * This method starts a processor on its own thread and takes a place in the pool for it.
+     * The processor hands the place back by signalling the manager when it finishes.
+     * This method should only be called while holding the lock.
+     * @param imageProcessorMT the processor to start
      */
-    private void managePool() {
-        if(!waitingList.isEmpty()) {
-            if(pool.size() == poolSize) {
-                for (int i = 0; i < pool.size(); i++) {
-                    if (pool.get(i).getKey().hasFinished()) {
-                        exchangeThread(i);
-                    }
-                }
-            }
-            if(pool.size() < poolSize) {
-                addThreadFromWaitingList();
-            }
-        }
-        if(!pool.isEmpty()) {
-            pool.removeIf(elem -> elem.getKey().hasFinished());
+    private void startProcessor(ImageProcessorMT imageProcessorMT) {
+        running++;
+        long waited = System.nanoTime() - imageProcessorMT.getQueuedAt();
+        Metrics.record(Metrics.Stage.QUEUE_WAIT, waited);
+        SchedulerEvent event = new SchedulerEvent();
+        if (event.shouldCommit()) {
+            event.filename = imageProcessorMT.getOutputFilename();
+            event.waited = waited;
+            event.running = running;
+            event.waiting = waitingList.size();
+            event.commit();
         }
+        imageProcessorMT.setOnFinished(this::processorFinished);
+        new Thread(imageProcessorMT).start();
     }
 
     /**
-     * This method exchanges the thread in the thread pool at a given index with the thread at
-     * the start of the waiting list and starts the thread
-     * @param indexToReplace
+     * This method is called by a processor once it has finished, to free its place in the pool.
      */
-    private void exchangeThread(int indexToReplace) {
+    private void processorFinished() {
         try {
             lock.lock();
-            pool.remove(indexToReplace);
-            pool.add(indexToReplace, new Pair(waitingList.get(0),new Thread(waitingList.get(0))));// Takes the element at the start of the queue and adds a pair of its thread and the image processor itself
-            waitingList.remove(0); // Removes that element
-            pool.get(indexToReplace).getValue().start(); // Start the threads
+            running--;
+            poolChanged.signal();
         }
         finally {
             lock.unlock();
         }
     }
 
-    public void setJoined(boolean joined) {
-        this.finishedJoined = joined;
-    }
-    public boolean hasJoined() {
-        return this.finishedJoined;
+    private void signalPoolChanged() {
+        try {
+            lock.lock();
+            poolChanged.signal();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     public void setStarted(boolean started) {
@@ -134,14 +156,23 @@ public class ThreadManager implements Runnable {
     }
 
     /**
-     * This method takes the first thread in the waiting list and adds it to the thread pool and starts the thread
-     * This method should be only called when there is available space in the thread pool
+     * This method blocks until every processor has finished and the pool has exited, or the timeout elapses.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if the pool has exited, false if the timeout elapsed first
+     * @throws InterruptedException if the waiting thread is interrupted
      */
-    private void addThreadFromWaitingList() {
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
         try {
             lock.lock();
-            pool.add(new Pair(waitingList.get(0),new Thread(waitingList.get(0))));
-            pool.get(pool.size() - 1).getValue().start();
+            while (!finished) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
         }
         finally {
             lock.unlock();
@@ -151,23 +182,19 @@ public class ThreadManager implements Runnable {
     /**
      * This method allows the caller to wait for the thread pool to exist.
      */
-    public synchronized void join() {
-        this.setJoined(false);
-        while(!hasJoined()) {
-            if(hasStarted() && pool.size() == 0 && waitingList.size() == 0) {
-                setJoined(true); // This would set the finishJoined to true and the loop would exit
-            }
-            for(int i = 0; i < pool.size(); i++) {
-                if (i < pool.size()) { // This condition ensures that if the threads are popped off then it will not access it
-                    try {
-                        pool.get(i).getValue().join();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+    public void join() {
+        try {
+            lock.lock();
+            while (!finished) {
+                terminated.await();
             }
         }
-
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -0,0 +1,65 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The shared work-stealing pool every image processor runs its tiles on.
+ * Tiles of all images being processed at the same time are queued in the same pool,
+ * so a worker that finishes the tiles of a small image steals tiles of a larger one
+ * instead of sitting idle.
+ */
+public class TileEngine {
+    /**
+     * The size of the per-core cache a tile should fit in.
+     */
+    public static final int L2_CACHE_BYTES = 256 * 1024;
+
+    /**
+     * The bytes a tile touches per pixel: the source and output pixels,
+     * and the three channel planes of the horizontal pass of a separable kernel.
+     */
+    private static final int BYTES_PER_TILE_PIXEL = 4 + 4 + 3 * 4;
+
+    /**
+     * The number of pixels a tile should have, so its working set stays in the L2 cache.
+     */
+    public static final long TARGET_TILE_PIXELS = L2_CACHE_BYTES / BYTES_PER_TILE_PIXEL;
+
+    /**
+     * The width automatically picked tiles are given when the image is wide enough.
+     * It keeps the rows of a tile long enough to be read sequentially, while leaving room
+     * for enough rows that the halo above and below the tile is a small part of it.
+     */
+    public static final int PREFERRED_TILE_WIDTH = 256;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private TileEngine() {
+    }
+
+    /**
+     * @return the pool sized to the number of available cores.
+     */
+    public static ForkJoinPool getPool() {
+        return POOL;
+    }
+
+    /**
+     * This method picks the shape of the tiles an image is cut into.
+     * A tile holds at most {@link #TARGET_TILE_PIXELS} pixels, and every image is cut into
+     * at least the given number of tiles, so even a small image is spread over several workers.
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param minimumTiles the minimum number of tiles the image should be split into
+     * @return the tile shape
+     */
+    public static TileShape tileShape(int width, int height, int minimumTiles) {
+        long pixels = (long) width * height;
+        long perTile = (pixels + minimumTiles - 1) / Math.max(1, minimumTiles);
+        long budget = Math.max(1, Math.min(perTile, TARGET_TILE_PIXELS));
+
+        int tileWidth = (int) Math.max(1, Math.min(Math.min(width, PREFERRED_TILE_WIDTH), budget));
+        int tileHeight = (int) Math.max(1, Math.min(height, budget / tileWidth));
+        return new TileShape(tileWidth, tileHeight);
+    }
+}
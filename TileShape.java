@@ -0,0 +1,41 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * The size of the tiles an image is cut into on the {@link TileEngine}.
+ * Tiles are filtered row by row, so a wider tile reads longer runs of contiguous pixels,
+ * while a squarer tile reads fewer halo pixels from the rows above and below it.
+ */
+public class TileShape {
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructor to create a tile shape.
+     * @param width the width of a tile in pixels
+     * @param height the height of a tile in pixels
+     */
+    public TileShape(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("A tile must be at least one pixel wide and high, got " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getPixels() {
+        return (long) width * height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
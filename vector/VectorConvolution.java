@@ -0,0 +1,181 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A convolution backend built on the incubating Java Vector API.
+ * It filters as many pixels per iteration as the preferred vector holds ints,
+ * 8 with AVX2 and 16 with AVX-512, accumulating each channel in single precision.
+ * Because of that, and because it uses fused multiply-adds, a channel may differ by one
+ * from the scalar path when its exact value is close to halfway between two levels.
+ *
+ * This class is only loaded by {@link Convolution} when the jdk.incubator.vector module is present.
+ * It lives in a source root of its own, so the default build neither needs nor warns about the incubating module.
+ * To use it, compile this directory along with the others and run the application, both with
+ * --add-modules jdk.incubator.vector.
+ */
+final class VectorConvolution implements ConvolutionBackend {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void applyInterior(Raster source, Kernel kernel, int x, int y, int width, int height,
+                              Raster dest, int destX, int destY) {
+        if (kernel.isSeparable()) {
+            applySeparable(source, kernel.getAlongX(), kernel.getAlongY(), x, y, width, height, dest, destX, destY);
+        }
+        else {
+            applyKernel(source, kernel, x, y, width, height, dest, destX, destY);
+        }
+    }
+
+    private static void applyKernel(Raster source, Kernel kernel, int x, int y, int width, int height,
+                                    Raster dest, int destX, int destY) {
+        int size = kernel.getSize();
+        int radius = kernel.getRadius();
+        float[] weights = kernel.getWeights();
+        int sourceWidth = source.getWidth();
+        int[] input = source.getPixels();
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+
+        for (int j = 0; j < height; j++) {
+            int windowStart = (y + j - radius) * sourceWidth + x - radius;
+            for (int i = 0; i < width; i += INTS.length()) {
+                VectorMask<Integer> lanes = tail(INTS, i, width);
+                FloatVector red = FloatVector.zero(FLOATS);
+                FloatVector green = FloatVector.zero(FLOATS);
+                FloatVector blue = FloatVector.zero(FLOATS);
+                for (int ky = 0; ky < size; ky++) {
+                    int rowStart = windowStart + ky * sourceWidth + i;
+                    for (int kx = 0; kx < size; kx++) {
+                        float weight = weights[ky * size + kx];
+                        if (weight == 0) {
+                            continue;
+                        }
+                        FloatVector w = FloatVector.broadcast(FLOATS, weight);
+                        IntVector argb = load(input, rowStart + kx, lanes);
+                        red = channel(argb, 16).fma(w, red);
+                        green = channel(argb, 8).fma(w, green);
+                        blue = channel(argb, 0).fma(w, blue);
+                    }
+                }
+                store(pack(red, green, blue), output, (destY + j) * outputWidth + destX + i, lanes);
+            }
+        }
+    }
+
+    private static void applySeparable(Raster source, float[] alongX, float[] alongY, int x, int y, int width, int height,
+                                       Raster dest, int destX, int destY) {
+        int radiusX = alongX.length / 2;
+        int radiusY = alongY.length / 2;
+        int sourceWidth = source.getWidth();
+        int[] input = source.getPixels();
+        int rows = height + alongY.length - 1;
+
+        float[][] planes = Convolution.planes(width * rows);
+        float[] red = planes[0];
+        float[] green = planes[1];
+        float[] blue = planes[2];
+        for (int row = 0; row < rows; row++) {
+            int rowStart = (y - radiusY + row) * sourceWidth + x - radiusX;
+            for (int i = 0; i < width; i += INTS.length()) {
+                VectorMask<Integer> lanes = tail(INTS, i, width);
+                FloatVector r = FloatVector.zero(FLOATS);
+                FloatVector g = FloatVector.zero(FLOATS);
+                FloatVector b = FloatVector.zero(FLOATS);
+                for (int k = 0; k < alongX.length; k++) {
+                    FloatVector w = FloatVector.broadcast(FLOATS, alongX[k]);
+                    IntVector argb = load(input, rowStart + i + k, lanes);
+                    r = channel(argb, 16).fma(w, r);
+                    g = channel(argb, 8).fma(w, g);
+                    b = channel(argb, 0).fma(w, b);
+                }
+                VectorMask<Float> planeLanes = lanes == null ? null : lanes.cast(FLOATS);
+                store(r, red, row * width + i, planeLanes);
+                store(g, green, row * width + i, planeLanes);
+                store(b, blue, row * width + i, planeLanes);
+            }
+        }
+
+        int[] output = dest.getPixels();
+        int outputWidth = dest.getWidth();
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i += FLOATS.length()) {
+                VectorMask<Float> lanes = tail(FLOATS, i, width);
+                FloatVector r = FloatVector.zero(FLOATS);
+                FloatVector g = FloatVector.zero(FLOATS);
+                FloatVector b = FloatVector.zero(FLOATS);
+                for (int l = 0; l < alongY.length; l++) {
+                    FloatVector w = FloatVector.broadcast(FLOATS, alongY[l]);
+                    int index = (j + l) * width + i;
+                    r = load(red, index, lanes).fma(w, r);
+                    g = load(green, index, lanes).fma(w, g);
+                    b = load(blue, index, lanes).fma(w, b);
+                }
+                store(pack(r, g, b), output, (destY + j) * outputWidth + destX + i, lanes == null ? null : lanes.cast(INTS));
+            }
+        }
+    }
+
+    /**
+     * This method gives the mask of the lanes inside the row for the last, partial, vector of a row.
+     * Full vectors get no mask, because masked loads and stores are slower.
+     * @return the mask, or null if every lane is inside the row
+     */
+    private static <E> VectorMask<E> tail(VectorSpecies<E> species, int i, int width) {
+        return i + species.length() <= width ? null : species.indexInRange(i, width);
+    }
+
+    private static IntVector load(int[] array, int offset, VectorMask<Integer> lanes) {
+        return lanes == null ? IntVector.fromArray(INTS, array, offset) : IntVector.fromArray(INTS, array, offset, lanes);
+    }
+
+    private static FloatVector load(float[] array, int offset, VectorMask<Float> lanes) {
+        return lanes == null ? FloatVector.fromArray(FLOATS, array, offset) : FloatVector.fromArray(FLOATS, array, offset, lanes);
+    }
+
+    private static void store(IntVector vector, int[] array, int offset, VectorMask<Integer> lanes) {
+        if (lanes == null) {
+            vector.intoArray(array, offset);
+        }
+        else {
+            vector.intoArray(array, offset, lanes);
+        }
+    }
+
+    private static void store(FloatVector vector, float[] array, int offset, VectorMask<Float> lanes) {
+        if (lanes == null) {
+            vector.intoArray(array, offset);
+        }
+        else {
+            vector.intoArray(array, offset, lanes);
+        }
+    }
+
+    /**
+     * This method unpacks one 8-bit channel of packed ARGB pixels into floats.
+     */
+    private static FloatVector channel(IntVector argb, int shift) {
+        return (FloatVector) argb.lanewise(VectorOperators.LSHR, shift).and(0xFF).convert(VectorOperators.I2F, 0);
+    }
+
+    /**
+     * This method clamps and rounds channel sums to 8 bits and packs them into opaque ARGB pixels.
+     */
+    private static IntVector pack(FloatVector red, FloatVector green, FloatVector blue) {
+        return toChannel(red).lanewise(VectorOperators.LSHL, 16)
+                .or(toChannel(green).lanewise(VectorOperators.LSHL, 8))
+                .or(toChannel(blue))
+                .or(0xFF000000);
+    }
+
+    private static IntVector toChannel(FloatVector value) {
+        // The value is positive once clamped, so truncating value + 0.5 rounds half up like Math.round.
+        return (IntVector) value.max(0f).min(255f).add(0.5f).convert(VectorOperators.F2I, 0);
+    }
+}